@@ -0,0 +1,204 @@
+package pippin;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs many executables in one JVM. Every program gets its own headless
+ * MachineModel and the same step budget, the programs are spread over a
+ * fork-join pool with one thread per core, and a line is printed for each
+ * program as soon as it finishes:
+ *
+ *   name status steps accumulator memoryHash
+ *
+ * where status is HALTED, BUDGET_EXHAUSTED, TIMED_OUT, CYCLE_DETECTED,
+ * TRAPPED (followed by the exception) or UNLOADABLE, and memoryHash is
+ * Arrays.hashCode of the final data memory in hex. With -profile n, the
+ * line is followed by the program's n hottest lines and data addresses.
+ * While it runs, its machines are counted in the JMX MBean of Metrics.
+ */
+public class BatchRunner {
+    private static final String USAGE = "usage: java pippin.BatchRunner [-steps n] [-threads n]"
+        + " [-engine interpreter|threaded|tiered] [-memory words]"
+        + " [-millis n] [-cycles] [-profile n] (directory | file.pexe | 'glob')...";
+
+    private final long maxSteps;
+    private final MachineModel.Engine engine;
+    private final int memorySize;
+    private final AtomicLong totalSteps = new AtomicLong();
+    private long maxNanos = Long.MAX_VALUE;
+    private boolean cycleDetection;
+    private int profileLines;
+
+    public BatchRunner(long maxSteps, MachineModel.Engine engine) {
+        this(maxSteps, engine, Memory.DATA_SIZE);
+    }
+
+    public BatchRunner(long maxSteps, MachineModel.Engine engine, int memorySize) {
+        this.maxSteps = maxSteps;
+        this.engine = engine;
+        this.memorySize = memorySize;
+    }
+
+    /**
+     * Stops each program that is still running after millis milliseconds
+     */
+    public void setTimeLimit(long millis) {
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Stops each program as soon as it is caught in an exact cycle
+     */
+    public void setCycleDetection(boolean on) {
+        this.cycleDetection = on;
+    }
+
+    /**
+     * Profiles each program and adds a report of its n hottest lines and
+     * data addresses to its result, or stops profiling if n is 0
+     */
+    public void setProfiling(int n) {
+        this.profileLines = n;
+    }
+
+    /**
+     * Loads and runs one program
+     * @return the result line for the program
+     */
+    public String run(Path file) {
+        MachineModel model = new MachineModel(memorySize);
+        Code code = new Code();
+        try {
+            Loader.loadOrThrow(model, code, file.toFile());
+        } catch (FileNotFoundException | RuntimeException e) {
+            return file + " UNLOADABLE " + e;
+        }
+        model.setCode(code);
+        model.setEngine(engine);
+        model.setCycleDetection(cycleDetection);
+        model.setProfiling(profileLines > 0);
+        RunResult result = model.run(maxSteps, maxNanos);
+        totalSteps.addAndGet(result.getSteps());
+        String line = String.format("%s %s %d %d %08x", file, result.getStatus(), result.getSteps(),
+                result.getAccumulator(), model.getDataHash());
+        if(result.getTrap() != null)
+            line += " " + result.getTrap();
+        if(profileLines > 0)
+            line += System.lineSeparator() + model.getProfile().report(code, profileLines);
+        return line;
+    }
+
+    /**
+     * @return the instructions executed by all the programs run so far
+     */
+    public long getTotalSteps() {
+        return totalSteps.get();
+    }
+
+    /**
+     * Expands the command line arguments into .pexe files: a directory
+     * stands for the .pexe files directly inside it, and an argument with
+     * glob characters is matched against the files under the directory
+     * the glob starts in.
+     */
+    static List<Path> expand(String argument) throws IOException {
+        int glob = indexOfGlob(argument);
+        if(glob < 0) {
+            Path path = Paths.get(argument);
+            if(!Files.isDirectory(path))
+                return List.of(path);
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(p -> p.toString().endsWith(".pexe"))
+                    .sorted().collect(Collectors.toList());
+            }
+        }
+        int slash = argument.lastIndexOf('/', glob);
+        Path root = Paths.get(slash < 0 ? "." : argument.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + argument);
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(p -> Files.isRegularFile(p)
+                    && (matcher.matches(p) || matcher.matches(root.relativize(p))))
+                .sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static int indexOfGlob(String argument) {
+        for(int i = 0; i < argument.length(); i++) {
+            if("*?[{".indexOf(argument.charAt(i)) >= 0)
+                return i;
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Metrics.register();
+        long maxSteps = 10000000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        MachineModel.Engine engine = MachineModel.Engine.THREADED;
+        int memorySize = Memory.DATA_SIZE;
+        long millis = -1;
+        boolean cycles = false;
+        int profileLines = 0;
+        List<Path> files = new ArrayList<>();
+        try {
+            for(int i = 0; i < args.length; i++) {
+                if(args[i].equals("-steps")) {
+                    maxSteps = Long.parseLong(args[++i]);
+                } else if(args[i].equals("-threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-memory")) {
+                    memorySize = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-millis")) {
+                    millis = Long.parseLong(args[++i]);
+                } else if(args[i].equals("-cycles")) {
+                    cycles = true;
+                } else if(args[i].equals("-profile")) {
+                    profileLines = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-engine")) {
+                    engine = MachineModel.Engine.valueOf(args[++i].toUpperCase());
+                } else {
+                    files.addAll(expand(args[i]));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | NoSuchElementException e) {
+            files.clear();
+        }
+        if(files.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        BatchRunner runner = new BatchRunner(maxSteps, engine, memorySize);
+        if(millis >= 0)
+            runner.setTimeLimit(millis);
+        runner.setCycleDetection(cycles);
+        runner.setProfiling(profileLines);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        for(Path file : files) {
+            pool.execute(() -> {
+                String line = runner.run(file);
+                System.out.println(line);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d programs on %d threads in %.3f s, %,.0f steps/s%n", files.size(),
+                threads, seconds, runner.getTotalSteps() / seconds);
+    }
+}
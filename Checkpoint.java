@@ -0,0 +1,135 @@
+package pippin;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves and restores the whole state of a machine through a memory mapped
+ * file. The layout is fixed and big-endian:
+ *
+ *   0   int   magic, "PIPC"
+ *   4   int   layout version, 1
+ *   8   int   flags, 1 if the machine was running
+ *   12  int   program counter
+ *   16  int   accumulator
+ *   20  int   number of code words
+ *   24  int   number of memory words
+ *   28  int   reserved, 0
+ *   32  long  steps executed so far
+ *   40  long  code words, packed as by Code.encode
+ *   ..  int   memory words
+ *
+ * Restoring maps the file and copies the words out; nothing is parsed.
+ */
+public class Checkpoint {
+    public static final int MAGIC = 0x50495043;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * Writes snapshot to file, replacing it only once the new checkpoint
+     * is complete
+     * @param steps the run counter to save with the state
+     */
+    public static void write(MachineModel.Snapshot snapshot, long steps, Path file) throws IOException {
+        Code code = snapshot.getCode();
+        int codeSize = code == null ? 0 : code.size();
+        int memorySize = snapshot.getMemorySize();
+        long size = HEADER_SIZE + 8L * codeSize + 4L * memorySize;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(snapshot.isRunning() ? 1 : 0)
+                .putInt(snapshot.getProgramCounter()).putInt(snapshot.getAccumulator())
+                .putInt(codeSize).putInt(memorySize).putInt(0).putLong(steps);
+            LongBuffer words = buffer.asLongBuffer();
+            for(int i = 0; i < codeSize; i++) {
+                words.put(code.getWord(i));
+            }
+            buffer.position(HEADER_SIZE + 8 * codeSize);
+            IntBuffer data = buffer.asIntBuffer();
+            for(int i = 0; i < memorySize; i++) {
+                data.put(snapshot.getData(i));
+            }
+            buffer.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of memory words saved in file, which the machine
+     * it is restored to must have
+     */
+    public static int readMemorySize(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_SIZE)
+                throw new IOException(file + " is not a Pippin checkpoint");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if(buffer.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a Pippin checkpoint");
+            return buffer.getInt(24);
+        }
+    }
+
+    /**
+     * Puts model in the state saved in file, with a new Code holding the
+     * saved program
+     * @return the run counter saved with the state
+     * @throws IOException if the file cannot be read or is not a
+     * checkpoint that fits the model's memory
+     */
+    public static long restore(Path file, MachineModel model) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE)
+                throw new IOException(file + " is not a Pippin checkpoint");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            if(buffer.getInt() != MAGIC)
+                throw new IOException(file + " is not a Pippin checkpoint");
+            int version = buffer.getInt();
+            if(version != VERSION)
+                throw new IOException(file + " has checkpoint layout " + version
+                        + ", expected " + VERSION);
+            boolean running = (buffer.getInt() & 1) != 0;
+            int programCounter = buffer.getInt();
+            int accumulator = buffer.getInt();
+            int codeSize = buffer.getInt();
+            int memorySize = buffer.getInt();
+            buffer.getInt();
+            long steps = buffer.getLong();
+            if(codeSize < 0 || codeSize > Code.CODE_MAX || memorySize < 0
+                    || fileSize != HEADER_SIZE + 8L * codeSize + 4L * memorySize)
+                throw new IOException(file + " is truncated or corrupt");
+            if(memorySize != model.getMemory().size())
+                throw new IOException(file + " holds " + memorySize + " words of memory, the machine has "
+                        + model.getMemory().size());
+
+            long[] words = new long[codeSize];
+            buffer.asLongBuffer().get(words);
+            Code code = new Code();
+            code.setCode(words, codeSize);
+            buffer.position(HEADER_SIZE + 8 * codeSize);
+            IntBuffer data = buffer.asIntBuffer();
+            model.clearMemory();
+            for(int i = 0; i < memorySize; i++) {
+                int value = data.get(i);
+                if(value != 0)
+                    model.setData(i, value);
+            }
+            model.setCode(code);
+            model.setProgramCounter(programCounter);
+            model.setAccumulator(accumulator);
+            model.setRunning(running);
+            return steps;
+        }
+    }
+}
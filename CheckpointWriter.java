@@ -0,0 +1,134 @@
+package pippin;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a machine headless while writing a checkpoint of it to one file
+ * every so many steps. The running thread only pauses to take a
+ * copy-on-write snapshot; the file is written on a background thread. If
+ * the previous checkpoint is still being written when the next is due,
+ * the new one is skipped rather than queued, so neither the pause nor the
+ * memory held by pending snapshots grows with the size of the machine.
+ */
+public class CheckpointWriter implements AutoCloseable {
+    private final Path file;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pippin checkpoint writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile IOException failure;
+    private volatile int written;
+    private int skipped;
+    private long maxPauseNanos;
+
+    public CheckpointWriter(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts writing a checkpoint of model in the background, unless one
+     * is still being written
+     * @param steps the run counter to save with the state
+     * @return false if the checkpoint was skipped
+     */
+    public boolean offer(MachineModel model, long steps) {
+        long start = System.nanoTime();
+        if(!writing.compareAndSet(false, true)) {
+            skipped++;
+            return false;
+        }
+        MachineModel.Snapshot snapshot = model.snapshot();
+        maxPauseNanos = Math.max(maxPauseNanos, System.nanoTime() - start);
+        writer.execute(() -> {
+            try {
+                Checkpoint.write(snapshot, steps, file);
+                written++;
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                writing.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Runs model like MachineModel.run, offering a checkpoint after every
+     * interval steps and writing a final one when the run ends
+     * @param stepsSoFar the run counter at the start, such as the one
+     * Checkpoint.restore returned
+     * @return the result of the whole run, counting only its own steps
+     */
+    public RunResult run(MachineModel model, long maxSteps, long interval, long stepsSoFar)
+            throws IOException {
+        if(interval <= 0)
+            throw new IllegalArgumentException("The checkpoint interval must be positive");
+        long steps = 0;
+        RunResult result;
+        do {
+            result = model.run(Math.min(interval, maxSteps - steps));
+            steps += result.getSteps();
+            if(result.getStatus() == RunResult.Status.BUDGET_EXHAUSTED && steps < maxSteps)
+                offer(model, stepsSoFar + steps);
+        } while(result.getStatus() == RunResult.Status.BUDGET_EXHAUSTED && steps < maxSteps);
+        // the final state is always saved, so wait for any write in progress
+        awaitIdle();
+        offer(model, stepsSoFar + steps);
+        awaitIdle();
+        if(failure != null)
+            throw failure;
+        return new RunResult(result.getStatus(), steps, result.getProgramCounter(),
+                result.getAccumulator(), result.getTrap());
+    }
+
+    private void awaitIdle() throws IOException {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of checkpoints written so far
+     */
+    public int getWritten() {
+        return this.written;
+    }
+
+    /**
+     * @return the number of checkpoints skipped because the one before
+     * was still being written
+     */
+    public int getSkipped() {
+        return this.skipped;
+    }
+
+    /**
+     * @return the longest time offer held up the running thread
+     */
+    public long getMaxPauseNanos() {
+        return this.maxPauseNanos;
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package pippin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file assembler for JitCompiler: a constant pool,
+ * methods with a Code attribute, and forward and backward branches. The
+ * class files are version 49, which the JVM verifies by type inference,
+ * so no StackMapTable has to be computed.
+ */
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<MethodWriter> methods = new ArrayList<>();
+
+    private int constant(String key, int tag, int... parts) {
+        Integer index = poolIndex.get(key);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(tag);
+            for(int part : parts) {
+                pool.writeShort(part);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String text) {
+        String key = "U" + text;
+        Integer index = poolIndex.get(key);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer index = poolIndex.get(key);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int classRef(String internalName) {
+        return constant("C" + internalName, 7, utf8(internalName));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int nameAndType = constant("N" + name + descriptor, 12, utf8(name), utf8(descriptor));
+        return constant("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType);
+    }
+
+    MethodWriter method(int access, String name, String descriptor) {
+        MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor));
+        methods.add(method);
+        return method;
+    }
+
+    byte[] toByteArray(int access, String name, String superName, String... interfaces) {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for(int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        int codeIndex = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for(int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // no fields
+            out.writeShort(methods.size());
+            for(MethodWriter method : methods) {
+                method.writeTo(out, codeIndex);
+            }
+            out.writeShort(0); // no class attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The JVM opcodes the compiler emits
+     */
+    interface Opcodes {
+        int ICONST_0 = 0x03, ICONST_1 = 0x04, LCONST_0 = 0x09, LCONST_1 = 0x0A;
+        int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+        int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, IALOAD = 0x2E;
+        int ISTORE = 0x36, LSTORE = 0x37, IASTORE = 0x4F;
+        int IADD = 0x60, LADD = 0x61, ISUB = 0x64, LSUB = 0x65;
+        int IMUL = 0x68, IDIV = 0x6C, I2L = 0x85, LCMP = 0x94;
+        int IFEQ = 0x99, IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C;
+        int IF_ICMPGE = 0xA2, GOTO = 0xA7;
+        int LRETURN = 0xAD, RETURN = 0xB1;
+        int INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7;
+    }
+
+    /**
+     * A position in a method's code that branches can target before it
+     * has been placed
+     */
+    static class Label {
+        private int position = -1;
+        private final List<int[]> uses = new ArrayList<>();
+    }
+
+    /**
+     * The body of one method
+     */
+    class MethodWriter implements Opcodes {
+        private final int access, nameIndex, descriptorIndex;
+        private byte[] code = new byte[256];
+        private int length;
+        private int maxStack, maxLocals;
+
+        MethodWriter(int access, int nameIndex, int descriptorIndex) {
+            this.access = access;
+            this.nameIndex = nameIndex;
+            this.descriptorIndex = descriptorIndex;
+        }
+
+        void setMaxs(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        private void put(int b) {
+            if(length == code.length)
+                code = Arrays.copyOf(code, 2 * length);
+            code[length++] = (byte)b;
+        }
+
+        private void putShort(int s) {
+            put(s >> 8);
+            put(s);
+        }
+
+        void op(int opcode) {
+            put(opcode);
+        }
+
+        void var(int opcode, int local) {
+            put(opcode);
+            put(local);
+        }
+
+        void pushInt(int value) {
+            if(value >= -1 && value <= 5) {
+                put(ICONST_0 + value);
+            } else if(value == (byte)value) {
+                put(BIPUSH);
+                put(value);
+            } else if(value == (short)value) {
+                put(SIPUSH);
+                putShort(value);
+            } else {
+                put(LDC_W);
+                putShort(integer(value));
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            put(opcode);
+            putShort(methodRef(owner, name, descriptor));
+        }
+
+        void jump(int opcode, Label target) {
+            int at = length;
+            put(opcode);
+            if(target.position >= 0) {
+                putShort(branchOffset(target.position - at));
+            } else {
+                target.uses.add(new int[] {at, length});
+                putShort(0);
+            }
+        }
+
+        void place(Label label) {
+            label.position = length;
+            for(int[] use : label.uses) {
+                int offset = branchOffset(length - use[0]);
+                code[use[1]] = (byte)(offset >> 8);
+                code[use[1] + 1] = (byte)offset;
+            }
+            label.uses.clear();
+        }
+
+        private int branchOffset(int offset) {
+            if(offset != (short)offset)
+                throw new IllegalStateException("Branch offset " + offset + " does not fit");
+            return offset;
+        }
+
+        private void writeTo(DataOutputStream out, int codeIndex) throws IOException {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeIndex);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0); // no exception table
+            out.writeShort(0); // no attributes
+        }
+    }
+}
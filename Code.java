@@ -1,53 +1,131 @@
 package pippin;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
 
 
+/**
+ * The code segment of a Pippin program. Each instruction is packed into a
+ * single long so the engine can fetch it with one array read: the opcode
+ * sits in the top 24 bits, the indirection level in the next 8 and the
+ * argument in the low 32.
+ */
 public class Code {
     public static final int CODE_MAX = 256;
-    private ArrayList<IntTriple> program = new ArrayList<IntTriple>();
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int OP_SHIFT = 40;
+    private static final int LEVEL_SHIFT = 32;
+    private long[] program = new long[INITIAL_CAPACITY];
+    private int size;
+    private int version;
 
-    class IntTriple {
-        int op, arg, indirectionLevel;
+    /**
+     * Packs one instruction into the word layout used by the code segment
+     * @param op the opcode, which must fit in 24 signed bits
+     * @param arg the argument
+     * @param level the indirection level, which must fit in 8 signed bits
+     * @return the packed instruction word
+     * @throws IllegalArgumentException if op or level are out of range
+     */
+    public static long encode(int op, int arg, int level) {
+        if(op != (op << 8 >> 8))
+            throw new IllegalArgumentException("Opcode " + op + " is out of range");
+        if(level != (byte)level)
+            throw new IllegalArgumentException("Indirection level " + level + " is out of range");
+        return (long)op << OP_SHIFT | (long)(level & 0xFF) << LEVEL_SHIFT | (arg & 0xFFFFFFFFL);
+    }
 
-        public IntTriple(int op, int arg, int indirectionLevel) {
-            this.op = op;
-            this.arg = arg;
-            this.indirectionLevel = indirectionLevel;
-        }
+    public static int op(long word) {
+        return (int)(word >> OP_SHIFT);
+    }
+
+    public static int arg(long word) {
+        return (int)word;
+    }
+
+    public static int indirectionLevel(long word) {
+        return (byte)(word >>> LEVEL_SHIFT);
     }
 
     public String getCodeText(int i) {
         StringBuilder builder = new StringBuilder();
-        if(i < program.size()) {
-            builder.append(InstructionMap.mnemonics.get(program.get(i).op));
+        if(i >= 0 && i < size) {
+            long word = program[i];
+            builder.append(InstructionMap.mnemonics.get(op(word)));
             builder.append(' ');
-            for(int j = 0; j < program.get(i).indirectionLevel; j++) {
+            for(int j = 0; j < indirectionLevel(word); j++) {
                 builder.append('[');
             }
-            builder.append(program.get(i).arg);
+            builder.append(arg(word));
         }
         return builder.toString();
     }
 
+    /**
+     * Fetches a whole instruction in one read
+     * @param i the line of the program
+     * @return the packed instruction word, see encode
+     * @throws IndexOutOfBoundsException if i is not a line of the program
+     */
+    public long getWord(int i) {
+        return this.program[Objects.checkIndex(i, size)];
+    }
+
     public int getOp(int i) {
-        return this.program.get(i).op;
+        return op(getWord(i));
     }
 
     public int getArg(int i) {
-        return this.program.get(i).arg;
+        return arg(getWord(i));
     }
 
     public int getIndirectionLevel(int i) {
-        return this.program.get(i).indirectionLevel;
+        return indirectionLevel(getWord(i));
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return a counter bumped on every change to the program, so
+     * translations of it can tell when they are stale
+     */
+    int getVersion() {
+        return this.version;
     }
 
     public void clear() {
-        this.program.clear();
+        this.size = 0;
+        this.version++;
     }
 
     public void setCode(int op, int arg, int level) {
-        this.program.add(new IntTriple(op, arg, level));
+        long word = encode(op, arg, level);
+        ensureCapacity(size + 1);
+        this.program[size++] = word;
+        this.version++;
     }
 
+    /**
+     * Appends a block of already packed instructions in one copy
+     * @param words the packed instructions, see encode
+     * @param count how many of the words to append
+     */
+    public void setCode(long[] words, int count) {
+        ensureCapacity(size + count);
+        System.arraycopy(words, 0, this.program, size, count);
+        size += count;
+        this.version++;
+    }
+
+    private void ensureCapacity(int needed) {
+        if(needed > CODE_MAX)
+            throw new ArrayIndexOutOfBoundsException(
+                    "Program is longer than CODE_MAX (" + CODE_MAX + ") instructions");
+        if(needed > program.length) {
+            program = Arrays.copyOf(program,
+                    Math.min(CODE_MAX, Math.max(needed, 2 * program.length)));
+        }
+    }
 }
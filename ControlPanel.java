@@ -6,6 +6,7 @@ import java.util.Observable;
 import java.util.Observer;
 
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
 
@@ -15,6 +16,7 @@ public class ControlPanel implements Observer {
     private JButton clearButton = new JButton("Clear");
     private JButton runButton = new JButton("Run/Pause");
     private JButton reloadButton = new JButton("Reload");
+    private JComboBox<String> speedBox = new JComboBox<>();
 
     public ControlPanel(MachineView machineView) {
         this.machineView = machineView;
@@ -36,6 +38,13 @@ public class ControlPanel implements Observer {
         reloadButton.setBackground(Color.WHITE);
         reloadButton.addActionListener(e -> machineView.reload());
         returnPanel.add(reloadButton);
+        for(long speed : MachineView.SPEEDS) {
+            speedBox.addItem(speed == 0 ? (1000 / MachineView.TICK) + " steps/s"
+                    : speed == Long.MAX_VALUE ? "Full speed" : String.format("%,d steps/s", speed));
+        }
+        speedBox.addActionListener(e ->
+                machineView.setStepsPerSecond(MachineView.SPEEDS[speedBox.getSelectedIndex()]));
+        returnPanel.add(speedBox);
         return returnPanel;
     }
 
@@ -0,0 +1,45 @@
+package pippin;
+
+/**
+ * Notices when a machine has returned to a state it was in before, which
+ * means it will repeat the same steps forever. While the memory is not
+ * modified, the whole state is just the program counter and accumulator,
+ * so the detector runs Brent's cycle finding algorithm on that pair and
+ * starts afresh whenever the memory's modification count moves. That
+ * costs two comparisons a step, and an exact cycle is reported within
+ * twice its length plus the steps that led into it.
+ */
+class CycleDetector {
+    private long modifications = -1;
+    private int savedPc, savedAccumulator;
+    private long power, length;
+
+    void reset() {
+        modifications = -1;
+    }
+
+    /**
+     * @return true if the state after this step repeats an earlier one
+     */
+    boolean repeated(int programCounter, int accumulator, long modificationCount) {
+        if(modificationCount != modifications) {
+            modifications = modificationCount;
+            save(programCounter, accumulator);
+            power = 1;
+            return false;
+        }
+        if(programCounter == savedPc && accumulator == savedAccumulator)
+            return true;
+        if(++length == power) {
+            save(programCounter, accumulator);
+            power <<= 1;
+        }
+        return false;
+    }
+
+    private void save(int programCounter, int accumulator) {
+        savedPc = programCounter;
+        savedAccumulator = accumulator;
+        length = 0;
+    }
+}
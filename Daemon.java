@@ -0,0 +1,237 @@
+package pippin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A resident simulator that reads requests one per line, from stdin or
+ * from the clients of a Unix domain socket, and answers each with one
+ * line that starts with "ok" or "error":
+ *
+ *   assemble source.pasm output.pexe   ok assembled=output.pexe
+ *   load file.pexe [name]               ok loaded=name lines=n
+ *   run [-steps n] [-millis n] [-engine e] program
+ *                                       ok hash=memoryHash HALTED steps=n pc=n acc=n
+ *   unload name                         ok unloaded=name
+ *   list                                ok name...
+ *   quit                                ends the connection
+ *   shutdown                            stops the daemon
+ *
+ * A program is a name given to load or the path of a .pexe file, which
+ * is then loaded on first use. Loaded programs stay in memory with their
+ * own MachineModel, so later runs skip parsing, reuse the threaded and
+ * compiled code, and run on a JVM that has already compiled the
+ * simulator. A program file that changes on disk is loaded again. Paths
+ * may not contain white space. The runs are counted in the JMX MBean
+ * of Metrics.
+ */
+public class Daemon {
+    public static final String DEFAULT_SOCKET =
+        Paths.get(System.getProperty("java.io.tmpdir"), "pippin.sock").toString();
+
+    /**
+     * A loaded program with the machine that runs it
+     */
+    private static class Program {
+        final File file;
+        final long modified;
+        final MachineModel model = new MachineModel();
+        final Code code = new Code();
+        // the machine as loaded, restored before every run
+        final MachineModel.Snapshot initial;
+
+        Program(File file) throws FileNotFoundException {
+            this.file = file;
+            this.modified = file.lastModified();
+            Loader.loadOrThrow(model, code, file);
+            model.setCode(code);
+            initial = model.snapshot();
+        }
+
+        boolean isStale() {
+            return file.lastModified() != modified;
+        }
+
+        synchronized String run(long maxSteps, long maxNanos, MachineModel.Engine engine) {
+            model.restore(initial);
+            model.setEngine(engine);
+            RunResult result = model.run(maxSteps, maxNanos);
+            return String.format("hash=%08x %s", model.getDataHash(), result);
+        }
+    }
+
+    private final Map<String, Program> programs = new ConcurrentHashMap<>();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @return true once a shutdown request has been handled
+     */
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    /**
+     * Handles one request
+     * @param request the request line
+     * @return the response line, or null if the connection should close
+     */
+    public String handle(String request) {
+        String[] words = request.trim().split("\\s+");
+        try {
+            switch(words[0]) {
+                case "":
+                    return "error empty request";
+                case "assemble":
+                    return assemble(words);
+                case "load":
+                    if(words.length < 2 || words.length > 3)
+                        return "error usage: load file.pexe [name]";
+                    String name = words.length == 3 ? words[2] : words[1];
+                    Program program = new Program(new File(words[1]));
+                    programs.put(name, program);
+                    return "ok loaded=" + name + " lines=" + program.code.size();
+                case "run":
+                    return run(words);
+                case "unload":
+                    if(words.length != 2)
+                        return "error usage: unload name";
+                    return programs.remove(words[1]) == null ? "error not loaded: " + words[1]
+                        : "ok unloaded=" + words[1];
+                case "list":
+                    return ("ok " + String.join(" ", new TreeMap<>(programs).keySet())).trim();
+                case "quit":
+                    return null;
+                case "shutdown":
+                    shutdown = true;
+                    return null;
+                default:
+                    return "error unknown request: " + words[0];
+            }
+        } catch (FileNotFoundException e) {
+            return "error file not found: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return "error " + e;
+        }
+    }
+
+    private String assemble(String[] words) {
+        if(words.length != 3)
+            return "error usage: assemble source.pasm output.pexe";
+        Map<Integer, String> errors = new TreeMap<>();
+        if(Assembler.assemble(new File(words[1]), new File(words[2]), errors))
+            return "ok assembled=" + words[2];
+        return "error " + String.join("; ", errors.values());
+    }
+
+    private String run(String[] words) throws FileNotFoundException {
+        long maxSteps = Long.MAX_VALUE;
+        long maxNanos = Long.MAX_VALUE;
+        MachineModel.Engine engine = MachineModel.Engine.THREADED;
+        int i = 1;
+        for(; i < words.length - 1; i += 2) {
+            if(words[i].equals("-steps"))
+                maxSteps = Long.parseLong(words[i + 1]);
+            else if(words[i].equals("-millis"))
+                maxNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(words[i + 1]));
+            else if(words[i].equals("-engine"))
+                engine = MachineModel.Engine.valueOf(words[i + 1].toUpperCase());
+            else
+                break;
+        }
+        if(i != words.length - 1)
+            return "error usage: run [-steps n] [-millis n] [-engine e] program";
+        String name = words[i];
+        Program program = programs.get(name);
+        if(program == null || program.isStale()) {
+            program = new Program(program == null ? new File(name) : program.file);
+            programs.put(name, program);
+        }
+        return "ok " + program.run(maxSteps, maxNanos, engine);
+    }
+
+    /**
+     * Answers requests from in on out until in ends or a quit or shutdown
+     * request
+     */
+    public void serve(BufferedReader in, PrintWriter out) throws IOException {
+        String request;
+        while(!shutdown && (request = in.readLine()) != null) {
+            String response = handle(request);
+            if(response == null)
+                break;
+            out.println(response);
+            out.flush();
+        }
+    }
+
+    /**
+     * Serves every client of the socket at path on its own thread until a
+     * client asks for shutdown
+     */
+    public void listen(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        ExecutorService clients = Executors.newCachedThreadPool();
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(path));
+            while(!shutdown) {
+                SocketChannel client = server.accept();
+                clients.execute(() -> {
+                    try (SocketChannel channel = client;
+                            BufferedReader in = new BufferedReader(new InputStreamReader(
+                                    Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                            PrintWriter out = new PrintWriter(Channels.newWriter(channel,
+                                    StandardCharsets.UTF_8))) {
+                        serve(in, out);
+                        if(shutdown)
+                            server.close();
+                    } catch (IOException e) {
+                        System.err.println("pippin daemon: " + e);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // closing the server to shut down interrupts accept
+            if(!shutdown)
+                throw e;
+        } finally {
+            server.close();
+            clients.shutdown();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * java pippin.Daemon serves stdin and stdout; java pippin.Daemon
+     * -socket [path] listens on a Unix domain socket instead
+     */
+    public static void main(String[] args) throws IOException {
+        Metrics.register();
+        Daemon daemon = new Daemon();
+        if(args.length > 0 && args[0].equals("-socket")) {
+            daemon.listen(Paths.get(args.length > 1 ? args[1] : DEFAULT_SOCKET));
+        } else {
+            daemon.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                    new PrintWriter(System.out));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package pippin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * A drop-in for Runner that hands the program to a running Daemon, so
+ * short programs do not pay for starting a JVM and warming it up. The
+ * arguments and output are the same as Runner's; the socket is
+ * Daemon.DEFAULT_SOCKET unless the pippin.socket property names another.
+ * The daemon only takes program [maxSteps], so with any of Runner's
+ * options (-memory, -profile, -trace, -checkpoint), with a saved .ckpt,
+ * or if no daemon answers, the program is run by Runner in this JVM.
+ */
+public class DaemonClient {
+    public static void main(String[] args) throws IOException {
+        if(args.length > 0 && (args[0].startsWith("-") || args[0].endsWith(".ckpt"))) {
+            Runner.main(args);
+            return;
+        }
+        if(args.length < 1 || args.length > 2) {
+            System.err.println("usage: java pippin.DaemonClient [-memory words] [-profile] [-trace file]"
+                    + " [-checkpoint file interval] program.pexe|saved.ckpt [maxSteps]");
+            System.exit(2);
+        }
+        String socket = System.getProperty("pippin.socket", Daemon.DEFAULT_SOCKET);
+        String request = "run " + (args.length > 1 ? "-steps " + args[1] + " " : "")
+            + new File(args[0]).getAbsolutePath();
+        String response;
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(Paths.get(socket)));
+            PrintWriter out = new PrintWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                        Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            out.println(request);
+            out.flush();
+            response = in.readLine();
+        } catch (IOException e) {
+            Runner.main(args);
+            return;
+        }
+        if(response == null || !response.startsWith("ok ")) {
+            System.err.println(response == null ? "no response from the daemon" : response);
+            System.exit(1);
+        }
+        // drop "ok hash=..." to print exactly what Runner prints
+        System.out.println(response.substring(response.indexOf(' ', 3) + 1));
+    }
+}
@@ -0,0 +1,260 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measures instruction throughput of the simulator on the sorting
+ * programs in the assembly directory. Each program is run to completion
+ * repeatedly, once through a copy of the TreeMap dispatch MachineModel
+ * used before its opcode table and once through MachineModel with each
+ * engine, and the steps per second of each are printed.
+ */
+public class DispatchBenchmark {
+    private static final int WARMUP_RUNS = 200;
+    private static final int TIMED_RUNS = 1000;
+
+    private MachineModel model = new MachineModel(true);
+    private Code code = new Code();
+    private int[] initialData;
+    private Map<Integer, Instruction> instructionMap = new TreeMap<Integer, Instruction>();
+
+    public DispatchBenchmark(File file) throws FileNotFoundException {
+        Loader.load(model, code, file);
+        model.setCode(code);
+        initialData = model.getData().clone();
+        populate();
+    }
+
+    // the INSTRUCTION_MAP of the original MachineModel, boxed keys,
+    // recursion on the indirection level and all, reaching the machine
+    // through its public methods
+    private void populate() {
+        instructionMap.put(0x0, (arg, level) -> {
+            if(level != 0)
+                throw new IllegalArgumentException("Ay, level isn't zero!");
+            model.setProgramCounter(model.getProgramCounter() + 1);
+        });
+        instructionMap.put(0x1, (arg, level) -> {
+            if(level < 0 || level > 2)
+                throw new IllegalArgumentException("Illegal indirection level in LOD instruction");
+            if(level == 0) {
+                model.setAccumulator(arg);
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+            else
+                instructionMap.get(0x1).execute(model.getData(arg), level - 1);
+        });
+        instructionMap.put(0x2, (arg, level) -> {
+            if(level != 1 && level != 2)
+                throw new IllegalArgumentException("Level must be 1 or 2 for STO instruction");
+            if(level == 1) {
+                model.setData(arg, model.getAccumulator());
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+            else
+                instructionMap.get(0x2).execute(model.getData(arg), level - 1);
+        });
+        instructionMap.put(0x3, (arg, level) -> {
+            if(level < 0 || level > 2)
+                throw new IllegalArgumentException("Illegal indirection level in ADD instruction");
+            if(level > 0) {
+                instructionMap.get(0x3).execute(model.getData(arg), level - 1);
+            } else {
+                model.setAccumulator(model.getAccumulator() + arg);
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+        });
+        instructionMap.put(0x4, (arg, level) -> {
+            if(level < 0 || level > 2)
+                throw new IllegalArgumentException("Illegal indirection level in SUB instruction");
+            if(level > 0) {
+                instructionMap.get(0x4).execute(model.getData(arg), level - 1);
+            } else {
+                model.setAccumulator(model.getAccumulator() - arg);
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+        });
+        instructionMap.put(0x5, (arg, level) -> {
+            if(level < 0 || level > 2)
+                throw new IllegalArgumentException("Illegal indirection level in MUL instruction");
+            if(level > 0) {
+                instructionMap.get(0x5).execute(model.getData(arg), level - 1);
+            } else {
+                model.setAccumulator(model.getAccumulator() * arg);
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+        });
+        instructionMap.put(0x6, (arg, level) -> {
+            if(level < 0 || level > 2)
+                throw new IllegalArgumentException("Illegal indirection level in DIV instruction");
+            if(arg == 0)
+                throw new DivideByZeroException("Division by Zero");
+            if(level > 0) {
+                instructionMap.get(0x6).execute(model.getData(arg), level - 1);
+            } else {
+                model.setAccumulator(model.getAccumulator() / arg);
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+        });
+        instructionMap.put(0x7, (arg, level) -> {
+            if(level != 1 && level != 0)
+                throw new IllegalArgumentException("Illegal indirection level in AND instruction");
+            if(level == 0) {
+                model.setAccumulator(model.getAccumulator() != 0 && arg != 0 ? 1 : 0);
+                model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+            else
+                instructionMap.get(0x7).execute(model.getData(arg), level - 1);
+        });
+        instructionMap.put(0x8, (arg, level) -> {
+            if(level != 0)
+                throw new IllegalArgumentException("Illegal indirection level in NOT instruction");
+            model.setAccumulator(model.getAccumulator() == 0 ? 1 : 0);
+            model.setProgramCounter(model.getProgramCounter() + 1);
+        });
+        instructionMap.put(0x9, (arg, level) -> {
+            if(level != 1)
+                throw new IllegalArgumentException("Illegal indirection level in CMPZ instruction");
+            model.setAccumulator(model.getData(arg) == 0 ? 1 : 0);
+            model.setProgramCounter(model.getProgramCounter() + 1);
+        });
+        instructionMap.put(0xA, (arg, level) -> {
+            if(level != 1)
+                throw new IllegalArgumentException("Illegal indirection level in CMPL instruction");
+            model.setAccumulator(model.getData(arg) < 0 ? 1 : 0);
+            model.setProgramCounter(model.getProgramCounter() + 1);
+        });
+        instructionMap.put(0xB, (arg, level) -> {
+            if(level != 0 && level != 1)
+                throw new IllegalArgumentException("Illegal indirection level in JUMP instruction");
+            if(level == 0)
+                model.setProgramCounter(arg);
+            else
+                instructionMap.get(0xB).execute(model.getData(arg), level - 1);
+        });
+        instructionMap.put(0xC, (arg, level) -> {
+            if(level != 0 && level != 1)
+                throw new IllegalArgumentException("Illegal indirection level in JMPZ instruction");
+            if(level == 0) {
+                if(model.getAccumulator() == 0)
+                    model.setProgramCounter(arg);
+                else
+                    model.setProgramCounter(model.getProgramCounter() + 1);
+            }
+            else
+                instructionMap.get(0xC).execute(model.getData(arg), level - 1);
+        });
+        instructionMap.put(0xF, (arg, level) -> model.halt());
+        instructionMap.put(0x14, (arg, level) -> {
+            if(level != 1)
+                throw new IllegalArgumentException("Illegal indirection level in ROT instruction");
+            int start = model.getData(arg);
+            int length = model.getData(arg + 1);
+            int move = model.getData(arg + 2);
+            if(start < 0 || length < 0 || start + length - 1 >= Memory.DATA_SIZE
+                    || start <= arg + 2 || start + length - 1 <= arg)
+                throw new IllegalArgumentException("Illegal Argument(s) for 'ROT' instruction.");
+            if(move == 0) {
+                return;
+            } else if(move > 0) {
+                model.setAccumulator(model.getData(start));
+                for(int i = 0; i < length - 1; i++) {
+                    int prev = model.getData(start + i + 1);
+                    model.setData(start + i + 1, model.getAccumulator());
+                    model.setAccumulator(prev);
+                }
+                model.setData(start, model.getAccumulator());
+                model.setData(arg + 2, move - 1);
+                instructionMap.get(0x14).execute(arg, level);
+            } else {
+                model.setData(arg + 2, length + move);
+                instructionMap.get(0x14).execute(arg, level);
+            }
+        });
+    }
+
+    private void reset() {
+        for(int i = 0; i < initialData.length; i++) {
+            model.setData(i, initialData[i]);
+        }
+        model.setAccumulator(0);
+        model.setProgramCounter(0);
+        model.setRunning(true);
+    }
+
+    /**
+     * Runs the program to completion looking every opcode up in the copy
+     * of the old INSTRUCTION_MAP, the way step used to.
+     * @return the number of instructions executed
+     */
+    private long runMapLookup() {
+        reset();
+        long steps = 0;
+        while(model.isRunning()) {
+            int pc = model.getProgramCounter();
+            instructionMap.get(code.getOp(pc)).execute(code.getArg(pc), code.getIndirectionLevel(pc));
+            steps++;
+        }
+        return steps;
+    }
+
+    /**
+     * Runs the program to completion through MachineModel.step, or
+     * through MachineModel.execute for the tiered engine and for fusion,
+     * which only take effect there
+     * @return the number of instructions executed
+     */
+    private long runStep() {
+        reset();
+        if(model.getEngine() == MachineModel.Engine.TIERED || model.isFusion())
+            return model.execute(Long.MAX_VALUE);
+        long steps = 0;
+        while(model.isRunning()) {
+            model.step();
+            steps++;
+        }
+        return steps;
+    }
+
+    private double stepsPerSecond(boolean mapLookup) {
+        for(int i = 0; i < WARMUP_RUNS; i++) {
+            if(mapLookup) runMapLookup(); else runStep();
+        }
+        long steps = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < TIMED_RUNS; i++) {
+            steps += mapLookup ? runMapLookup() : runStep();
+        }
+        long elapsed = System.nanoTime() - start;
+        return steps * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        String[] names = args.length > 0 ? args
+            : new String[] {"assembly/qsort.pexe", "assembly/merge.pexe"};
+        for(String name : names) {
+            DispatchBenchmark bench = new DispatchBenchmark(new File(name));
+            double map = bench.stepsPerSecond(true);
+            double table = bench.stepsPerSecond(false);
+            bench.model.setRecording(1 << 16);
+            double recording = bench.stepsPerSecond(false);
+            bench.model.setRecording(0);
+            bench.model.setEngine(MachineModel.Engine.THREADED);
+            double threaded = bench.stepsPerSecond(false);
+            bench.model.setFusion(true);
+            double fused = bench.stepsPerSecond(false);
+            bench.model.setFusion(false);
+            bench.model.setEngine(MachineModel.Engine.TIERED);
+            double tiered = bench.stepsPerSecond(false);
+            System.out.printf("%s%n  map: %,.0f steps/s%n  table: %,.0f steps/s (%.2fx)%n"
+                    + "  table, recording undo: %,.0f steps/s (%.2fx)%n"
+                    + "  threaded: %,.0f steps/s (%.2fx)%n  fused: %,.0f steps/s (%.2fx)%n"
+                    + "  tiered: %,.0f steps/s (%.2fx)%n",
+                    name, map, table, table / map, recording, recording / map,
+                    threaded, threaded / map, fused, fused / map, tiered, tiered / map);
+        }
+    }
+}
@@ -0,0 +1,647 @@
+package pippin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import javax.management.ObjectName;
+
+public class EngineTester {
+    private static final long MAX_STEPS = 1000000;
+    // the executables in ./assembly that load cleanly; several of them
+    // stop on a run time error, which the engines must agree on too
+    private static final String[] PROGRAMS = {
+        "21", "28", "29", "31", "32", "34", "41", "42", "43",
+        "factorial", "factorial8", "factorialindirect7", "merge", "qsort"
+    };
+
+    class Outcome {
+        MachineModel machine = new MachineModel(true);
+        String error = "none";
+        long steps;
+
+        // steps the program one instruction at a time
+        Outcome(String name) throws FileNotFoundException {
+            this(name, MachineModel.Engine.INTERPRETER);
+            try {
+                while(machine.isRunning() && steps < MAX_STEPS) {
+                    machine.step();
+                    steps++;
+                }
+            } catch (RuntimeException e) {
+                error = e.getClass().getName();
+            }
+        }
+
+        // runs the program with MachineModel.run in slices of budget
+        Outcome(String name, MachineModel.Engine engine, long budget) throws FileNotFoundException {
+            this(name, engine, budget, false);
+        }
+
+        Outcome(String name, MachineModel.Engine engine, long budget, boolean fusion)
+                throws FileNotFoundException {
+            this(name, engine);
+            machine.setFusion(fusion);
+            RunResult result;
+            do {
+                result = machine.run(Math.min(budget, MAX_STEPS - steps));
+                steps += result.getSteps();
+            } while(result.getStatus() == RunResult.Status.BUDGET_EXHAUSTED && steps < MAX_STEPS);
+            if(result.getTrap() != null) {
+                error = result.getTrap().getClass().getName();
+            }
+        }
+
+        Outcome(String name, MachineModel.Engine engine) throws FileNotFoundException {
+            Code code = new Code();
+            Loader.load(machine, code, new File("./assembly/" + name + ".pexe"));
+            machine.setCode(code);
+            machine.setEngine(engine);
+            machine.setHotLoopThreshold(2);
+            machine.setRunning(true);
+        }
+    }
+
+    private void assertSameOutcome(String name, Outcome expected, Outcome actual) {
+        assertEquals(name + " error", expected.error, actual.error);
+        assertEquals(name + " steps", expected.steps, actual.steps);
+        if(expected.error.equals("none")) {
+            // run stops the machine when it traps, stepping leaves it running
+            assertEquals(name + " running", expected.machine.isRunning(),
+                    actual.machine.isRunning());
+        }
+        assertEquals(name + " program counter", expected.machine.getProgramCounter(),
+                actual.machine.getProgramCounter());
+        assertEquals(name + " accumulator", expected.machine.getAccumulator(),
+                actual.machine.getAccumulator());
+        assertEquals(name + " changed index", expected.machine.getChangedIndex(),
+                actual.machine.getChangedIndex());
+        assertArrayEquals(name + " memory", expected.machine.getData(), actual.machine.getData());
+    }
+
+    @Test
+    public void testThreadedMatchesInterpreter() throws FileNotFoundException {
+        for(String name : PROGRAMS) {
+            assertSameOutcome(name, new Outcome(name),
+                    new Outcome(name, MachineModel.Engine.THREADED, MAX_STEPS));
+        }
+    }
+
+    @Test
+    // fused sequences must never run past a budget or hide a jump target
+    public void testFusedMatchesInterpreter() throws FileNotFoundException {
+        for(long budget : new long[] {1, 2, 5, MAX_STEPS}) {
+            for(String name : PROGRAMS) {
+                assertSameOutcome(name + " in slices of " + budget, new Outcome(name),
+                        new Outcome(name, MachineModel.Engine.THREADED, budget, true));
+            }
+        }
+    }
+
+    @Test
+    public void testFusionSavesDispatches() throws FileNotFoundException {
+        Outcome fused = new Outcome("qsort", MachineModel.Engine.THREADED, MAX_STEPS, true);
+        assertTrue(fused.machine.getFusedDispatchesSaved() > 0);
+        Outcome plain = new Outcome("qsort", MachineModel.Engine.THREADED, MAX_STEPS);
+        assertEquals(0, plain.machine.getFusedDispatchesSaved());
+    }
+
+    @Test
+    public void testRunHeadless() throws FileNotFoundException {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        Loader.load(machine, code, new File("./assembly/factorial8.pexe"));
+        machine.setCode(code);
+        RunResult result = machine.run(10);
+        assertEquals(RunResult.Status.BUDGET_EXHAUSTED, result.getStatus());
+        assertEquals(10, result.getSteps());
+        result = machine.run(Long.MAX_VALUE);
+        assertEquals(RunResult.Status.HALTED, result.getStatus());
+        assertEquals(69, result.getSteps());
+        assertEquals(11, result.getProgramCounter());
+        assertEquals(40320, machine.getData(1));
+        assertFalse(machine.isRunning());
+    }
+
+    @Test
+    public void testBatchRunner() throws IOException {
+        BatchRunner runner = new BatchRunner(MAX_STEPS, MachineModel.Engine.THREADED);
+        assertTrue(runner.run(Paths.get("assembly", "qsort.pexe")).endsWith(" HALTED 10390 90 a5fdfb92"));
+        assertTrue(runner.run(Paths.get("assembly", "26e.pexe")).contains(" UNLOADABLE "));
+        assertTrue(runner.run(Paths.get("assembly", "31.pexe")).contains(" TRAPPED 5 0 "));
+        assertEquals(10390 + 5, runner.getTotalSteps());
+        assertEquals(3, BatchRunner.expand("assembly/factorial*.pexe").size());
+    }
+
+    @Test
+    public void testDaemonReusesPrograms() {
+        Daemon daemon = new Daemon();
+        assertEquals("ok loaded=f lines=12", daemon.handle("load assembly/factorial8.pexe f"));
+        // every run starts from the memory the program was loaded with
+        for(int i = 0; i < 2; i++) {
+            assertTrue(daemon.handle("run -engine tiered f").endsWith(" HALTED steps=79 pc=11 acc=0"));
+        }
+        assertTrue(daemon.handle("run -steps 10 f").contains(" BUDGET_EXHAUSTED steps=10 "));
+        assertEquals("ok f", daemon.handle("list"));
+        assertEquals("ok unloaded=f", daemon.handle("unload f"));
+        assertTrue(daemon.handle("run f").startsWith("error "));
+        // every rerun gives the same answer, whichever engine runs it
+        String merged = daemon.handle("run assembly/merge.pexe");
+        for(String engine : new String[] {"threaded", "tiered", "threaded", "tiered"}) {
+            assertEquals(merged, daemon.handle("run -engine " + engine + " assembly/merge.pexe"));
+        }
+        assertEquals(null, daemon.handle("shutdown"));
+        assertTrue(daemon.isShutdown());
+    }
+
+    // the program counter, accumulator and memory hash after each step
+    private long[][] trace(MachineModel machine, int steps) {
+        long[][] states = new long[steps + 1][];
+        for(int i = 0; i <= steps; i++) {
+            states[i] = new long[] {machine.getProgramCounter(), machine.getAccumulator(),
+                Arrays.hashCode(machine.getData())};
+            if(i < steps)
+                machine.step();
+        }
+        return states;
+    }
+
+    @Test
+    public void testReverseStepRetracesRun() throws FileNotFoundException {
+        Outcome outcome = new Outcome("qsort", MachineModel.Engine.THREADED);
+        MachineModel machine = outcome.machine;
+        machine.setRecording(1 << 16);
+        long[][] states = trace(machine, 10390);
+        assertFalse(machine.isRunning());
+        assertEquals(10390, machine.getUndoDepth());
+        for(int i = 10390; i > 0; i--) {
+            assertTrue(machine.reverseStep());
+            assertArrayEquals("step " + i, states[i - 1], new long[] {machine.getProgramCounter(),
+                machine.getAccumulator(), Arrays.hashCode(machine.getData())});
+        }
+        assertFalse(machine.reverseStep());
+        assertTrue(machine.isRunning());
+    }
+
+    @Test
+    public void testUndoLogKeepsRecentSteps() throws FileNotFoundException {
+        MachineModel machine = new Outcome("merge", MachineModel.Engine.TIERED).machine;
+        machine.setRecording(100);
+        RunResult result = machine.run(5000);
+        assertEquals(5000, result.getSteps());
+        int depth = machine.getUndoDepth();
+        assertTrue(depth >= 50 && depth <= 100);
+        assertEquals(depth, machine.reverseContinue(Long.MAX_VALUE, null));
+        MachineModel replay = new Outcome("merge", MachineModel.Engine.INTERPRETER).machine;
+        replay.run(5000 - depth);
+        assertEquals(replay.getProgramCounter(), machine.getProgramCounter());
+        assertArrayEquals(replay.getData(), machine.getData());
+    }
+
+    @Test
+    public void testReverseRotate() {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        // ROT never moves the program counter, so this repeats forever
+        code.setCode(0x14, 0x10, 1);
+        machine.setCode(code);
+        for(int i = 0x20; i < 0x2A; i++)
+            machine.setData(i, i);
+        machine.setData(0x10, 0x20);
+        machine.setData(0x11, 0xA);
+        machine.setData(0x12, 3);
+        int[] before = machine.getData();
+        machine.setRecording(UndoLog.MIN_CAPACITY);
+        machine.setRunning(true);
+        // the step, the cleared rotation count and the rotation take three slots
+        machine.step();
+        assertEquals(0x27, machine.getData(0x20));
+        assertEquals(1, machine.getUndoDepth());
+        assertTrue(machine.reverseStep());
+        assertArrayEquals(before, machine.getData());
+        // later rotations by 0 change nothing and take one slot each, so
+        // the third pushes the whole first rotation out of the log
+        machine.run(3);
+        assertEquals(2, machine.getUndoDepth());
+        assertEquals(2, machine.reverseContinue(Long.MAX_VALUE, null));
+        assertFalse(machine.reverseStep());
+        assertEquals(0x27, machine.getData(0x20));
+        assertEquals(0, machine.getData(0x12));
+    }
+
+    @Test
+    public void testRunTraps() {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        code.setCode(0x1, 3, 0);
+        code.setCode(0x6, 0, 0);
+        machine.setCode(code);
+        RunResult result = machine.run(Long.MAX_VALUE);
+        assertEquals(RunResult.Status.TRAPPED, result.getStatus());
+        assertEquals(DivideByZeroException.class, result.getTrap().getClass());
+        assertEquals(1, result.getSteps());
+        assertEquals(1, result.getProgramCounter());
+        assertEquals(3, result.getAccumulator());
+    }
+
+    @Test
+    public void testCycleDetected() {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        code.setCode(0x1, 3, 0);
+        code.setCode(0x7, 1, 0);
+        code.setCode(0xB, 1, 0);
+        machine.setCode(code);
+        machine.setCycleDetection(true);
+        RunResult result = machine.run(Long.MAX_VALUE);
+        assertEquals(RunResult.Status.CYCLE_DETECTED, result.getStatus());
+        assertEquals(1, result.getAccumulator());
+        assertTrue(result.getSteps() < 10);
+        assertFalse(machine.isRunning());
+    }
+
+    @Test
+    // a counter in memory never repeats a state, and timing out leaves the
+    // machine where it can carry on
+    public void testCountingLoopTimesOut() {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        code.setCode(0x1, 0, 1);
+        code.setCode(0x3, 1, 0);
+        code.setCode(0x2, 0, 1);
+        code.setCode(0xB, 0, 0);
+        machine.setCode(code);
+        machine.setCycleDetection(true);
+        RunResult result = machine.run(1000);
+        assertEquals(RunResult.Status.BUDGET_EXHAUSTED, result.getStatus());
+        machine.setCycleDetection(false);
+        result = machine.run(Long.MAX_VALUE, 1000000);
+        assertEquals(RunResult.Status.TIMED_OUT, result.getStatus());
+        assertEquals(0, result.getSteps() % 4);
+        assertEquals(result.getSteps() / 4 + 250, machine.getData(0));
+        assertTrue(machine.isRunning());
+    }
+
+    @Test
+    public void testExecuteMatchesStep() throws FileNotFoundException {
+        for(String name : PROGRAMS) {
+            assertSameOutcome(name, new Outcome(name),
+                    new Outcome(name, MachineModel.Engine.INTERPRETER, MAX_STEPS));
+        }
+    }
+
+    @Test
+    public void testTieredMatchesInterpreter() throws FileNotFoundException {
+        for(String name : PROGRAMS) {
+            assertSameOutcome(name, new Outcome(name),
+                    new Outcome(name, MachineModel.Engine.TIERED, MAX_STEPS));
+        }
+    }
+
+    @Test
+    // compiled loops must stop exactly at the end of each budget
+    public void testTieredKeepsBudgets() throws FileNotFoundException {
+        for(long budget : new long[] {1, 2, 3, 7, 50, 333}) {
+            for(String name : new String[] {"factorial8", "qsort", "merge"}) {
+                assertSameOutcome(name + " in slices of " + budget, new Outcome(name),
+                        new Outcome(name, MachineModel.Engine.TIERED, budget));
+            }
+        }
+    }
+
+    @Test
+    public void testHotLoopCompiles() throws FileNotFoundException {
+        MachineModel machine = new MachineModel(true);
+        Code code = new Code();
+        Loader.load(machine, code, new File("./assembly/factorial8.pexe"));
+        JitCompiler jit = new JitCompiler(code, machine.getMemory(), 1);
+        jit.backEdge(0xA, 0x1);
+        assertNotNull(jit.loopAt(0x1));
+        // one pass through the multiply loop, entered with 8 in the
+        // accumulator and memory[0]
+        int[] registers = {8, 0};
+        long steps = jit.loopAt(0x1).run(machine.getMemory(), registers, 10);
+        assertEquals(10, steps);
+        assertEquals(56, registers[0]);
+        assertEquals(0x1, registers[1]);
+        assertEquals(7, machine.getData(0));
+        assertEquals(8, machine.getData(1));
+    }
+
+    @Test
+    public void testCorpusLoopsCompile() throws FileNotFoundException {
+        for(String name : new String[] {"qsort", "merge"}) {
+            MachineModel machine = new MachineModel(true);
+            Code code = new Code();
+            Loader.loadOrThrow(machine, code, new File("./assembly/" + name + ".pexe"));
+            JitCompiler jit = new JitCompiler(code, machine.getMemory(), 1);
+            int loops = 0;
+            for(int pc = 0; pc < code.size(); pc++) {
+                int op = code.getOp(pc), target = code.getArg(pc);
+                if((op == 0xB || op == 0xC) && code.getIndirectionLevel(pc) == 0 && target <= pc) {
+                    jit.backEdge(pc, target);
+                    assertNotNull(name + " loop " + target + "-" + pc, jit.loopAt(target));
+                    loops++;
+                }
+            }
+            assertTrue(name, loops > 0);
+        }
+    }
+
+    @Test
+    public void testThreadedSeesReloadedCode() {
+        MachineModel machine = new MachineModel(true);
+        machine.setEngine(MachineModel.Engine.THREADED);
+        Code code = new Code();
+        code.setCode(0x1, 5, 0);
+        machine.setCode(code);
+        machine.step();
+        assertEquals(5, machine.getAccumulator());
+        code.clear();
+        code.setCode(0x1, 7, 0);
+        machine.setProgramCounter(0);
+        machine.step();
+        assertEquals(7, machine.getAccumulator());
+    }
+
+    @Test
+    public void testProfileCounts() throws FileNotFoundException {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        Loader.load(machine, code, new File("./assembly/factorial8.pexe"));
+        machine.setCode(code);
+        machine.setEngine(MachineModel.Engine.THREADED);
+        machine.setProfiling(true);
+        RunResult result = machine.run(Long.MAX_VALUE);
+        assertEquals(79, result.getSteps());
+        assertEquals(40320, machine.getData(1));
+        Profile profile = machine.getProfile();
+        assertEquals(79, profile.getTotalExecutions());
+        // the JMPZ at 7 leaves the multiply loop once, after 7 passes
+        assertEquals(1, profile.getTaken(7));
+        assertEquals(7, profile.getNotTaken(7));
+        assertEquals(8, profile.getExecutions(1));
+        // STO [1 runs 8 times, after the load from the data section
+        assertEquals(8, profile.getWrites(1));
+        // reads from outside a run are not counted
+        assertEquals(7, profile.getReads(1));
+        assertTrue(profile.report(code, 10).contains("JMPZ 11      taken 1, not taken 7"));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Metrics metrics = Metrics.GLOBAL;
+        long[] writes = new long[MachineModel.Engine.values().length];
+        for(MachineModel.Engine engine : MachineModel.Engine.values()) {
+            Outcome outcome = new Outcome("merge", engine);
+            long retired = metrics.getInstructionsRetired();
+            long written = metrics.getMemoryWrites();
+            assertEquals(19701, outcome.machine.run(MAX_STEPS).getSteps());
+            assertEquals(19701, metrics.getInstructionsRetired() - retired);
+            writes[engine.ordinal()] = metrics.getMemoryWrites() - written;
+        }
+        assertTrue(writes[0] > 0);
+        assertEquals(writes[0], writes[1]);
+        assertEquals(writes[0], writes[2]);
+        assertEquals(0, metrics.getActiveMachines());
+
+        // opcodes are counted by the interpreter, and by any engine that profiles
+        for(boolean profiling : new boolean[] {false, true}) {
+            Outcome counting = new Outcome("factorial8",
+                    profiling ? MachineModel.Engine.THREADED : MachineModel.Engine.INTERPRETER);
+            counting.machine.setProfiling(profiling);
+            Map<String, Long> before = metrics.getOpcodeCounts();
+            counting.machine.run(MAX_STEPS);
+            Map<String, Long> after = metrics.getOpcodeCounts();
+            long counted = 0;
+            for(Map.Entry<String, Long> entry : after.entrySet()) {
+                counted += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            }
+            assertEquals(79, counted);
+            assertEquals(1, after.get("HALT") - before.getOrDefault("HALT", 0L));
+        }
+
+        String divide = DivideByZeroException.class.getName();
+        long traps = metrics.getTraps().getOrDefault(divide, 0L);
+        new Outcome("31", MachineModel.Engine.THREADED).machine.run(MAX_STEPS);
+        assertEquals(traps + 1, (long)metrics.getTraps().get(divide));
+
+        Metrics.register();
+        Metrics.register();
+        Object retired = ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(new ObjectName(Metrics.OBJECT_NAME), "InstructionsRetired");
+        assertEquals(metrics.getInstructionsRetired(), retired);
+    }
+
+    @Test
+    public void testTraceMatchesSteps() throws IOException {
+        Path dir = Files.createTempDirectory("pippin");
+        Path base = dir.resolve("merge.trace");
+        long[][] expected = trace(new Outcome("merge", MachineModel.Engine.INTERPRETER).machine, 19701);
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        Loader.load(machine, code, new File("./assembly/merge.pexe"));
+        machine.setCode(code);
+        // small segments, so the records cross several of them
+        try (TraceWriter writer = new TraceWriter(base, 1000)) {
+            machine.setTrace(writer);
+            assertEquals(RunResult.Status.HALTED, machine.run(MAX_STEPS).getStatus());
+        }
+        TraceReader trace = new TraceReader(base);
+        assertEquals(19701, trace.size());
+        for(int step = 0; step < trace.size(); step++) {
+            assertEquals(expected[step][0], trace.getProgramCounter(step));
+            assertEquals(expected[step + 1][1], trace.getAccumulator(step));
+        }
+        // the first STO of the program
+        int sto = 0;
+        while(trace.getOpcode(sto) != 0x2) sto++;
+        assertTrue(trace.isWrite(sto));
+        assertEquals(trace.getAccumulator(sto), trace.getValue(sto));
+        assertEquals(code.getArg(trace.getProgramCounter(sto)), trace.getAddress(sto));
+        for(int index = 0; Files.exists(TraceWriter.segment(base, index)); index++) {
+            Files.delete(TraceWriter.segment(base, index));
+        }
+        Files.delete(dir);
+    }
+
+    // traces merge into base with segments of segmentRecords records
+    private void traceMerge(Path base, int segmentRecords) throws IOException {
+        MachineModel machine = new Outcome("merge", MachineModel.Engine.INTERPRETER).machine;
+        try (TraceWriter writer = new TraceWriter(base, segmentRecords)) {
+            machine.setTrace(writer);
+            machine.run(MAX_STEPS);
+        }
+    }
+
+    @Test
+    public void testTraceDiff() throws IOException {
+        Path dir = Files.createTempDirectory("pippin");
+        Path a = dir.resolve("a"), b = dir.resolve("b"), c = dir.resolve("c");
+        traceMerge(a, 1000);
+        traceMerge(b, 1000);
+        traceMerge(c, 700);
+        assertEquals(-1, TraceDiff.firstDivergence(new TraceReader(a), new TraceReader(b)));
+        assertEquals(-1, TraceDiff.firstDivergence(new TraceReader(a), new TraceReader(c)));
+        // change the accumulator of step 5432 in b and c
+        for(Path base : new Path[] {b, c}) {
+            int perSegment = base == b ? 1000 : 700;
+            try (FileChannel channel = FileChannel.open(TraceWriter.segment(base, 5432 / perSegment),
+                        StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, -12345),
+                        TraceWriter.HEADER_SIZE + 5432 % perSegment * TraceWriter.RECORD_SIZE + 12);
+            }
+        }
+        assertEquals(5432, TraceDiff.firstDivergence(new TraceReader(a), new TraceReader(b)));
+        assertEquals(5432, TraceDiff.firstDivergence(new TraceReader(a), new TraceReader(c)));
+        assertTrue(TraceDiff.context(new TraceReader(a), new TraceReader(b), 5432, null)
+                .contains("> 5432:"));
+        for(Path base : new Path[] {a, b, c}) {
+            for(int index = 0; Files.exists(TraceWriter.segment(base, index)); index++) {
+                Files.delete(TraceWriter.segment(base, index));
+            }
+        }
+        Files.delete(dir);
+    }
+
+    // gives machine its own copy of its code with every HALT made a NOP
+    private static MachineModel noHalt(MachineModel machine) {
+        Code code = machine.getCode();
+        long[] words = new long[code.size()];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = code.getOp(i) == 0xF ? Code.encode(0x0, 0, 0) : code.getWord(i);
+        }
+        Code copy = new Code();
+        copy.setCode(words, words.length);
+        machine.setCode(copy);
+        return machine;
+    }
+
+    @Test
+    public void testLockstep() throws FileNotFoundException {
+        MachineModel interpreted = new Outcome("merge", MachineModel.Engine.INTERPRETER).machine;
+        MachineModel threaded = new Outcome("merge", MachineModel.Engine.THREADED).machine;
+        assertEquals(-1, TraceDiff.lockstep(interpreted, threaded, MAX_STEPS, null));
+        assertFalse(interpreted.isRunning());
+        MachineModel merge = new Outcome("merge", MachineModel.Engine.INTERPRETER).machine;
+        MachineModel qsort = new Outcome("qsort", MachineModel.Engine.INTERPRETER).machine;
+        StringBuilder context = new StringBuilder();
+        long step = TraceDiff.lockstep(merge, qsort, MAX_STEPS, context);
+        assertTrue(step >= 0);
+        assertTrue(context.toString().contains("> " + step + ":"));
+        // TIERED is compared a slice at a time, so that compiled loops run
+        MachineModel tiered = new Outcome("merge", MachineModel.Engine.TIERED).machine;
+        interpreted = new Outcome("merge", MachineModel.Engine.INTERPRETER).machine;
+        assertEquals(-1, TraceDiff.lockstep(interpreted, tiered, MAX_STEPS, null));
+        assertFalse(tiered.isRunning());
+        // merge with its HALT made a NOP parts ways on its last step, past
+        // the first slice, and TIERED must find that very step
+        interpreted = new Outcome("merge", MachineModel.Engine.INTERPRETER).machine;
+        MachineModel longer = noHalt(new Outcome("merge", MachineModel.Engine.INTERPRETER).machine);
+        context = new StringBuilder();
+        step = TraceDiff.lockstep(interpreted, longer, MAX_STEPS, context);
+        assertTrue(step > TraceDiff.SLICE);
+        tiered = new Outcome("merge", MachineModel.Engine.TIERED).machine;
+        longer = noHalt(new Outcome("merge", MachineModel.Engine.TIERED).machine);
+        StringBuilder slicedContext = new StringBuilder();
+        assertEquals(step, TraceDiff.lockstep(tiered, longer, MAX_STEPS, slicedContext));
+        assertEquals(context.toString(), slicedContext.toString());
+    }
+
+    @Test
+    public void testOptimizerKeepsOutcome() throws FileNotFoundException {
+        for(String name : PROGRAMS) {
+            MachineModel before = new MachineModel(), after = new MachineModel();
+            Code code = new Code();
+            Loader.loadOrThrow(before, code, new File("./assembly/" + name + ".pexe"));
+            Loader.loadOrThrow(after, new Code(), new File("./assembly/" + name + ".pexe"));
+            after.setCode(new Optimizer(code, before.getMemory()).optimize());
+            before.setCode(code);
+            RunResult expected = before.run(MAX_STEPS);
+            RunResult actual = after.run(MAX_STEPS);
+            assertEquals(name, expected.getStatus(), actual.getStatus());
+            assertEquals(name, expected.getAccumulator(), actual.getAccumulator());
+            if(expected.getTrap() != null)
+                assertEquals(name, expected.getTrap().getClass(), actual.getTrap().getClass());
+            assertArrayEquals(name, before.getData(), after.getData());
+            assertTrue(name, actual.getSteps() <= expected.getSteps());
+        }
+    }
+
+    @Test
+    public void testOptimizerPasses() {
+        MachineModel machine = new MachineModel();
+        machine.setData(0x20, 7);
+        Code code = new Code();
+        code.setCode(0x2, 1, 1);  // STO [1
+        code.setCode(0x1, 1, 1);  // LOD [1, which is already in the accumulator
+        code.setCode(0x2, 2, 1);  // STO [2, overwritten below
+        code.setCode(0x3, 0, 0);  // ADD 0
+        code.setCode(0x2, 2, 1);  // STO [2
+        code.setCode(0x1, 0x20, 1); // LOD [20, which is 7
+        code.setCode(0xC, 9, 0);  // JMPZ 9, never taken
+        code.setCode(0x2, 3, 1);  // STO [3
+        code.setCode(0xB, 10, 0); // JUMP 10, which leads to HALT
+        code.setCode(0x2, 4, 1);  // STO [4
+        code.setCode(0xB, 11, 0); // JUMP 11
+        code.setCode(0xF, 0, 0);  // HALT
+        Optimizer optimizer = new Optimizer(code, machine.getMemory());
+        Code optimized = optimizer.optimize();
+        assertTrue(optimizer.isCompacted());
+        assertEquals(12, optimizer.getLinesBefore());
+        String[] expected = {"STO [1", "STO [2", "LOD 7", "STO [3", "HALT 0"};
+        assertEquals(expected.length, optimized.size());
+        for(int pc = 0; pc < expected.length; pc++) {
+            assertEquals(expected[pc], optimized.getCodeText(pc));
+        }
+        MachineModel other = new MachineModel();
+        other.setData(0x20, 7);
+        machine.setAccumulator(-5);
+        other.setAccumulator(-5);
+        machine.setCode(code);
+        other.setCode(optimized);
+        assertEquals(RunResult.Status.HALTED, machine.run(100).getStatus());
+        assertEquals(RunResult.Status.HALTED, other.run(100).getStatus());
+        assertArrayEquals(machine.getData(), other.getData());
+    }
+
+    @Test
+    public void testOptimizerKeepsJumpsOnTheirOwnPath() {
+        int[] data = {2, 6, 0, 1, 0, 7, 1, 1};
+        Code code = new Code();
+        code.setCode(0xC, 0, 1);  // JMPZ [0, which is 2
+        code.setCode(0xB, 4, 0);  // JUMP 4
+        code.setCode(0xB, 6, 1);  // JUMP [6, which is 1
+        code.setCode(0xB, 0, 1);  // JUMP [0
+        code.setCode(0xF, 0, 0);  // HALT
+        MachineModel machine = new MachineModel(), other = new MachineModel();
+        for(int i = 0; i < data.length; i++) {
+            machine.setData(i, data[i]);
+            other.setData(i, data[i]);
+        }
+        Code optimized = new Optimizer(code, machine.getMemory()).optimize();
+        machine.setCode(code);
+        other.setCode(optimized);
+        RunResult expected = machine.run(100), actual = other.run(100);
+        assertEquals(RunResult.Status.HALTED, expected.getStatus());
+        assertEquals(RunResult.Status.HALTED, actual.getStatus());
+        assertEquals(expected.getAccumulator(), actual.getAccumulator());
+        assertArrayEquals(machine.getData(), other.getData());
+    }
+}
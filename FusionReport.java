@@ -0,0 +1,58 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+
+/**
+ * Runs programs on the threaded engine with and without superinstruction
+ * fusion and prints, for each, how many instructions it executed, how
+ * many dispatches fusion removed and whether both runs ended in the same
+ * state.
+ */
+public class FusionReport {
+    private static final long MAX_STEPS = 100000000;
+
+    private static MachineModel run(File file, boolean fusion, RunResult[] result)
+            throws FileNotFoundException {
+        MachineModel model = new MachineModel();
+        Code code = new Code();
+        Loader.load(model, code, file);
+        model.setCode(code);
+        model.setEngine(MachineModel.Engine.THREADED);
+        model.setFusion(fusion);
+        result[0] = model.run(MAX_STEPS);
+        return model;
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        String[] names = args;
+        if(names.length == 0) {
+            File[] files = new File("assembly").listFiles((dir, name) -> name.endsWith(".pexe"));
+            Arrays.sort(files);
+            names = new String[files.length];
+            for(int i = 0; i < files.length; i++) {
+                names[i] = files[i].getPath();
+            }
+        }
+        System.out.printf("%-28s %10s %10s %10s %6s  %s%n",
+                "program", "steps", "dispatches", "removed", "saved", "state");
+        for(String name : names) {
+            RunResult[] plain = new RunResult[1], fused = new RunResult[1];
+            MachineModel plainModel, fusedModel;
+            try {
+                plainModel = run(new File(name), false, plain);
+                fusedModel = run(new File(name), true, fused);
+            } catch (RuntimeException e) {
+                System.out.printf("%-28s could not be loaded: %s%n", name, e);
+                continue;
+            }
+            long removed = fusedModel.getFusedDispatchesSaved();
+            long steps = fused[0].getSteps();
+            boolean same = plain[0].toString().equals(fused[0].toString())
+                && Arrays.equals(plainModel.getData(), fusedModel.getData());
+            System.out.printf("%-28s %10d %10d %10d %5.1f%%  %s%n", name, steps, steps - removed,
+                    removed, steps == 0 ? 0.0 : 100.0 * removed / steps, same ? "same" : "DIFFERENT");
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package pippin;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
 public class InstructionMap {
     public static Map<String, Integer> opcode = new TreeMap<>();
     public static Map<Integer, String> mnemonics = new TreeMap<>();
+    /**
+     * One more than the largest opcode, so opcodes can index a dense
+     * dispatch table directly
+     */
+    public static final int OPCODE_COUNT;
     static {
         opcode.put("NOP", 0x0);
         opcode.put("LOD", 0x1);
@@ -25,5 +31,6 @@ public class InstructionMap {
         for(String str : opcode.keySet()) {
             mnemonics.put(opcode.get(str), str);
         }
+        OPCODE_COUNT = Collections.max(mnemonics.keySet()) + 1;
     }
 }
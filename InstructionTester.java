@@ -857,4 +857,25 @@ public class InstructionTester {
         int[] c = Arrays.copyOfRange(machine.getData(), 0x20, 0x25);
         assertArrayEquals(new int[] {3, 4, 5, 1, 2}, c);
     }
+
+    @Test
+    // Test ROT by far more places than the old recursive version could manage
+    public void testROTlarge(){
+        machine.clearMemory();
+        Instruction instr = machine.get(0x14);
+        for(int i = 0x20; i < 0x2A; i++)
+            machine.setData(i, (i - 0x1F) * 2);//first 10 even numbers excl. 0
+        machine.setData(0x10, 0x20);
+        machine.setData(0x11, 0xA);
+        machine.setData(0x12, 1000003);
+        instr.execute(0x10, 1);
+        int[] a = Arrays.copyOfRange(machine.getData(), 0x20, 0x2A);
+        assertArrayEquals(new int[] {16, 18, 20, 2, 4, 6, 8, 10, 12, 14}, a);
+        //Test accumulator holds the new first element and the count is used up
+        assertEquals("Accumulator is first element", 16, machine.getAccumulator());
+        assertEquals("Rotation count cleared", 0, machine.getData(0x12));
+        //Test the whole block is reported as one change
+        assertEquals("Changed index", 0x20, machine.getChangedIndex());
+        assertEquals("Changed length", 0xA, machine.getChangedLength());
+    }
 }
@@ -0,0 +1,433 @@
+package pippin;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The second tier of the TIERED engine. MachineModel reports every taken
+ * backward JUMP or JMPZ; once a loop head has been reached that way
+ * HOT_LOOP_THRESHOLD times, the lines from the head to the jump are
+ * compiled into a hidden class whose run method executes them straight
+ * line, keeping the accumulator in a local and reading and writing Memory
+ * directly.
+ *
+ * Compiled code never fails. Before any instruction that could throw (an
+ * address outside memory, a zero divisor, HALT, ROT, an illegal
+ * addressing mode) it side-exits with the program counter on that
+ * instruction and everything before it complete, so the interpreter then
+ * executes it exactly as it would have. It also leaves the loop head
+ * when fewer steps remain in the budget than the loop has lines, so a run
+ * never overshoots its budget.
+ */
+class JitCompiler {
+    static final int HOT_LOOP_THRESHOLD = 1000;
+    private static final String MEMORY = "pippin/Memory";
+    private static final String CLASS_NAME = "pippin/CompiledLoop";
+    private static final String RUN_DESCRIPTOR = "(Lpippin/Memory;[IJ)J";
+
+    /**
+     * A compiled loop
+     */
+    interface CompiledLoop {
+        /**
+         * Runs the loop from its head until it leaves the compiled lines
+         * or must hand an instruction to the interpreter
+         * @param memory the machine's memory
+         * @param registers the accumulator at [0] on entry; on return the
+         * accumulator at [0] and the next line to execute at [1]
+         * @param budget the most instructions that may be executed
+         * @return the number of instructions executed
+         */
+        long run(Memory memory, int[] registers, long budget);
+    }
+
+    // locals of the compiled run method
+    private static final int MEMORY_ARG = 1, REGISTERS_ARG = 2, BUDGET_ARG = 3;
+    private static final int ACC = 5, STEPS = 6, ADDRESS = 8, VALUE = 9, EXIT_PC = 10;
+    private static final int MAX_LOCALS = 11, MAX_STACK = 6;
+
+    private final Code code;
+    private final int version;
+    private final int memorySize;
+    private final int threshold;
+    private final int[] backEdges;
+    private final CompiledLoop[] loops;
+
+    JitCompiler(Code code, Memory memory, int threshold) {
+        this.code = code;
+        this.version = code.getVersion();
+        this.memorySize = memory.size();
+        this.threshold = threshold;
+        this.backEdges = new int[code.size()];
+        this.loops = new CompiledLoop[code.size()];
+    }
+
+    /**
+     * @return true if the counters and loops here belong to code in its
+     * current form running on a memory the size of memory, which the
+     * compiled loops are handed on every run
+     */
+    boolean isTranslationOf(Code code, Memory memory) {
+        return this.code == code && this.version == code.getVersion()
+            && this.memorySize == memory.size();
+    }
+
+    /**
+     * @param pc a line of the program
+     * @return the loop compiled with its head at pc, or null
+     */
+    CompiledLoop loopAt(int pc) {
+        return pc >= 0 && pc < loops.length ? loops[pc] : null;
+    }
+
+    /**
+     * Counts a taken backward jump, compiling its loop once it is hot
+     * @param from the line of the jump
+     * @param to the line jumped to, no greater than from
+     */
+    void backEdge(int from, int to) {
+        if(to >= 0 && ++backEdges[to] == threshold) {
+            try {
+                loops[to] = compile(to, from);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // leave the loop to the interpreter; a LinkageError such as
+                // a VerifyError is a bug in the emitted code and is thrown
+            }
+        }
+    }
+
+    private boolean inMemory(int address) {
+        return address >= 0 && address < memorySize;
+    }
+
+    private CompiledLoop compile(int start, int end) throws ReflectiveOperationException {
+        ClassFileWriter writer = new ClassFileWriter();
+        ClassFileWriter.MethodWriter init = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        init.var(ClassFileWriter.Opcodes.ALOAD, 0);
+        init.invoke(ClassFileWriter.Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(ClassFileWriter.Opcodes.RETURN);
+        init.setMaxs(1, 1);
+        ClassFileWriter.MethodWriter run = writer.method(ClassFileWriter.ACC_PUBLIC, "run", RUN_DESCRIPTOR);
+        new LoopEmitter(run, start, end).emit();
+        run.setMaxs(MAX_STACK, MAX_LOCALS);
+        byte[] bytes = writer.toByteArray(
+                ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER,
+                CLASS_NAME, "java/lang/Object", "pippin/JitCompiler$CompiledLoop");
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        try {
+            return (CompiledLoop)lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new ReflectiveOperationException(e);
+        }
+    }
+
+    /**
+     * Generates the body of run for the lines start to end
+     */
+    private class LoopEmitter implements ClassFileWriter.Opcodes {
+        private final ClassFileWriter.MethodWriter m;
+        private final int start, end;
+        private final ClassFileWriter.Label[] lines;
+        private final ClassFileWriter.Label[] sideExits;
+        private final boolean[] loopHeads;
+        private final ClassFileWriter.Label exit = new ClassFileWriter.Label();
+
+        LoopEmitter(ClassFileWriter.MethodWriter m, int start, int end) {
+            this.m = m;
+            this.start = start;
+            this.end = end;
+            int length = end - start + 1;
+            lines = new ClassFileWriter.Label[length];
+            sideExits = new ClassFileWriter.Label[length];
+            loopHeads = new boolean[length];
+            for(int i = 0; i < length; i++) {
+                lines[i] = new ClassFileWriter.Label();
+            }
+            loopHeads[0] = true;
+            for(int pc = start; pc <= end; pc++) {
+                long word = code.getWord(pc);
+                int op = Code.op(word);
+                int target = Code.arg(word);
+                if((op == 0xB || op == 0xC) && Code.indirectionLevel(word) == 0
+                        && target >= start && target <= pc) {
+                    loopHeads[target - start] = true;
+                }
+            }
+        }
+
+        void emit() {
+            m.var(ALOAD, REGISTERS_ARG);
+            m.op(ICONST_0);
+            m.op(IALOAD);
+            m.var(ISTORE, ACC);
+            m.op(LCONST_0);
+            m.var(LSTORE, STEPS);
+            for(int pc = start; pc <= end; pc++) {
+                m.place(lines[pc - start]);
+                if(loopHeads[pc - start]) {
+                    // leave unless a whole pass through the loop fits in the budget
+                    ClassFileWriter.Label enough = new ClassFileWriter.Label();
+                    m.var(LLOAD, BUDGET_ARG);
+                    m.var(LLOAD, STEPS);
+                    m.op(LSUB);
+                    m.pushInt(end - start + 1);
+                    m.op(I2L);
+                    m.op(LCMP);
+                    m.jump(IFGE, enough);
+                    m.jump(GOTO, sideExit(pc));
+                    m.place(enough);
+                }
+                instruction(pc, code.getWord(pc));
+            }
+            m.pushInt(end + 1);
+            m.var(ISTORE, EXIT_PC);
+            m.place(exit);
+            m.var(ALOAD, REGISTERS_ARG);
+            m.op(ICONST_0);
+            m.var(ILOAD, ACC);
+            m.op(IASTORE);
+            m.var(ALOAD, REGISTERS_ARG);
+            m.op(ICONST_1);
+            m.var(ILOAD, EXIT_PC);
+            m.op(IASTORE);
+            m.var(LLOAD, STEPS);
+            m.op(LRETURN);
+            for(int pc = start; pc <= end; pc++) {
+                if(sideExits[pc - start] != null) {
+                    m.place(sideExits[pc - start]);
+                    m.pushInt(pc);
+                    m.var(ISTORE, EXIT_PC);
+                    m.jump(GOTO, exit);
+                }
+            }
+        }
+
+        /**
+         * @return the label that leaves run with pc as the next line,
+         * without executing it
+         */
+        private ClassFileWriter.Label sideExit(int pc) {
+            if(sideExits[pc - start] == null)
+                sideExits[pc - start] = new ClassFileWriter.Label();
+            return sideExits[pc - start];
+        }
+
+        private void countStep() {
+            m.var(LLOAD, STEPS);
+            m.op(LCONST_1);
+            m.op(LADD);
+            m.var(LSTORE, STEPS);
+        }
+
+        private void jumpTo(int target) {
+            if(target >= start && target <= end) {
+                m.jump(GOTO, lines[target - start]);
+            } else {
+                m.pushInt(target);
+                m.var(ISTORE, EXIT_PC);
+                m.jump(GOTO, exit);
+            }
+        }
+
+        private void getData() {
+            m.invoke(INVOKEVIRTUAL, MEMORY, "getData", "(I)I");
+        }
+
+        /**
+         * Pushes memory[ADDRESS], leaving at fail if ADDRESS is outside memory
+         */
+        private void loadChecked(ClassFileWriter.Label fail) {
+            m.var(ILOAD, ADDRESS);
+            m.jump(IFLT, fail);
+            m.var(ILOAD, ADDRESS);
+            m.pushInt(memorySize);
+            m.jump(IF_ICMPGE, fail);
+            m.var(ALOAD, MEMORY_ARG);
+            m.var(ILOAD, ADDRESS);
+            getData();
+        }
+
+        /**
+         * Pushes the operand of an instruction, through level memory
+         * reads of arg
+         */
+        private void operand(int arg, int level, ClassFileWriter.Label fail) {
+            if(level == 0) {
+                m.pushInt(arg);
+                return;
+            }
+            m.var(ALOAD, MEMORY_ARG);
+            m.pushInt(arg);
+            getData();
+            if(level == 2) {
+                m.var(ISTORE, ADDRESS);
+                loadChecked(fail);
+            }
+        }
+
+        /**
+         * Pops an int and pushes 1 if the branch opcode would take it, else 0
+         */
+        private void booleanOf(int branch) {
+            ClassFileWriter.Label yes = new ClassFileWriter.Label();
+            ClassFileWriter.Label done = new ClassFileWriter.Label();
+            m.jump(branch, yes);
+            m.op(ICONST_0);
+            m.jump(GOTO, done);
+            m.place(yes);
+            m.op(ICONST_1);
+            m.place(done);
+        }
+
+        private void instruction(int pc, long word) {
+            int op = Code.op(word);
+            int arg = Code.arg(word);
+            int level = Code.indirectionLevel(word);
+            ClassFileWriter.Label fail = sideExit(pc);
+            boolean legal;
+            switch(op) {
+                case 0x0: case 0x8: //NOP, NOT
+                    legal = level == 0;
+                    break;
+                case 0x1: case 0x3: case 0x4: case 0x5: case 0x6: //LOD, ADD, SUB, MUL, DIV
+                    legal = level >= 0 && level <= 2 && (op != 0x6 || arg != 0);
+                    break;
+                case 0x2: //STO
+                    legal = level == 1 || level == 2;
+                    break;
+                case 0x7: case 0xB: case 0xC: //AND, JUMP, JMPZ
+                    legal = level == 0 || level == 1;
+                    break;
+                case 0x9: case 0xA: //CMPZ, CMPL
+                    legal = level == 1;
+                    break;
+                default: //HALT, ROT and unknown opcodes
+                    legal = false;
+            }
+            if(!legal || (level > 0 && !inMemory(arg))) {
+                m.jump(GOTO, fail);
+                return;
+            }
+            switch(op) {
+                case 0x0: //NOP
+                    break;
+                case 0x1: //LOD
+                    operand(arg, level, fail);
+                    m.var(ISTORE, ACC);
+                    break;
+                case 0x2: //STO
+                    if(level == 1) {
+                        m.var(ALOAD, MEMORY_ARG);
+                        m.pushInt(arg);
+                    } else {
+                        m.var(ALOAD, MEMORY_ARG);
+                        m.pushInt(arg);
+                        getData();
+                        m.var(ISTORE, ADDRESS);
+                        m.var(ILOAD, ADDRESS);
+                        m.jump(IFLT, fail);
+                        m.var(ILOAD, ADDRESS);
+                        m.pushInt(memorySize);
+                        m.jump(IF_ICMPGE, fail);
+                        m.var(ALOAD, MEMORY_ARG);
+                        m.var(ILOAD, ADDRESS);
+                    }
+                    m.var(ILOAD, ACC);
+                    m.invoke(INVOKEVIRTUAL, MEMORY, "setData", "(II)V");
+                    break;
+                case 0x3: //ADD
+                case 0x4: //SUB
+                case 0x5: //MUL
+                    // the operand first, since a checked load can leave for
+                    // the side exit and must do so with an empty stack
+                    operand(arg, level, fail);
+                    m.var(ISTORE, VALUE);
+                    m.var(ILOAD, ACC);
+                    m.var(ILOAD, VALUE);
+                    m.op(op == 0x3 ? IADD : op == 0x4 ? ISUB : IMUL);
+                    m.var(ISTORE, ACC);
+                    break;
+                case 0x6: //DIV, which refuses a zero anywhere along the chain of addresses
+                    if(level == 2) {
+                        m.var(ALOAD, MEMORY_ARG);
+                        m.pushInt(arg);
+                        getData();
+                        m.var(ISTORE, ADDRESS);
+                        m.var(ILOAD, ADDRESS);
+                        m.jump(IFEQ, fail);
+                        loadChecked(fail);
+                    } else {
+                        operand(arg, level, fail);
+                    }
+                    m.var(ISTORE, VALUE);
+                    m.var(ILOAD, VALUE);
+                    m.jump(IFEQ, fail);
+                    m.var(ILOAD, ACC);
+                    m.var(ILOAD, VALUE);
+                    m.op(IDIV);
+                    m.var(ISTORE, ACC);
+                    break;
+                case 0x7: { //AND
+                    ClassFileWriter.Label no = new ClassFileWriter.Label();
+                    ClassFileWriter.Label done = new ClassFileWriter.Label();
+                    operand(arg, level, fail);
+                    m.jump(IFEQ, no);
+                    m.var(ILOAD, ACC);
+                    m.jump(IFEQ, no);
+                    m.op(ICONST_1);
+                    m.jump(GOTO, done);
+                    m.place(no);
+                    m.op(ICONST_0);
+                    m.place(done);
+                    m.var(ISTORE, ACC);
+                    break;
+                }
+                case 0x8: //NOT
+                    m.var(ILOAD, ACC);
+                    booleanOf(IFEQ);
+                    m.var(ISTORE, ACC);
+                    break;
+                case 0x9: //CMPZ
+                case 0xA: //CMPL
+                    operand(arg, level, fail);
+                    booleanOf(op == 0x9 ? IFEQ : IFLT);
+                    m.var(ISTORE, ACC);
+                    break;
+                case 0xB: //JUMP
+                    if(level == 0) {
+                        countStep();
+                        jumpTo(arg);
+                    } else {
+                        operand(arg, level, fail);
+                        m.var(ISTORE, EXIT_PC);
+                        countStep();
+                        m.jump(GOTO, exit);
+                    }
+                    return;
+                case 0xC: { //JMPZ
+                    ClassFileWriter.Label notTaken = new ClassFileWriter.Label();
+                    if(level == 1) {
+                        operand(arg, level, fail);
+                        m.var(ISTORE, VALUE);
+                    }
+                    countStep();
+                    m.var(ILOAD, ACC);
+                    m.jump(IFNE, notTaken);
+                    if(level == 0) {
+                        jumpTo(arg);
+                    } else {
+                        m.var(ILOAD, VALUE);
+                        m.var(ISTORE, EXIT_PC);
+                        m.jump(GOTO, exit);
+                    }
+                    m.place(notTaken);
+                    return;
+                }
+            }
+            countStep();
+        }
+    }
+}
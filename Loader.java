@@ -2,6 +2,7 @@ package pippin;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.NoSuchElementException;
 import javax.swing.JOptionPane;
@@ -9,18 +10,50 @@ import javax.swing.JOptionPane;
 public class Loader {
     public static void load(MachineModel model, Code code, File file) throws FileNotFoundException {
         if(model == null || code == null || file == null) return;
+        try {
+            loadOrThrow(model, code, file);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            JOptionPane.showMessageDialog(null,
+                    e.getMessage(),
+                    "Failure loading data", JOptionPane.WARNING_MESSAGE);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(null,
+                    e.getMessage(),
+                    "Failure loading data", JOptionPane.WARNING_MESSAGE);
+        } catch (NoSuchElementException e) {
+            JOptionPane.showMessageDialog(null,
+                    "NoSuchElementException",
+                    "Failure loading data", JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    /**
+     * Loads file like load, but reports a malformed file by throwing
+     * instead of showing a dialog, for callers without a GUI
+     * @throws ArrayIndexOutOfBoundsException if the code or data does not fit
+     * @throws IllegalArgumentException if an instruction cannot be encoded
+     * @throws NoSuchElementException if a line is missing a number
+     */
+    public static void loadOrThrow(MachineModel model, Code code, File file) throws FileNotFoundException {
         try (Scanner input = new Scanner(file)) {
+            long[] words = new long[16];
+            int count = 0;
             boolean incode = true;
             while(input.hasNextLine()) {
                 String line = input.nextLine();
                 Scanner parser = new Scanner(line);
                 int first = parser.nextInt(16);
-                if(incode && first == -1)
+                if(incode && first == -1) {
                     incode = false;
+                    code.setCode(words, count);
+                }
                 else if(incode) {
                     int arg = parser.nextInt(16);
                     int level = parser.nextInt(16);
-                    code.setCode(first, arg, level);
+                    if(count == words.length)
+                        words = Arrays.copyOf(words, 2 * count);
+                    words[count++] = Code.encode(first, arg, level);
                 }
                 else {
                     int value = parser.nextInt(16);
@@ -28,15 +61,8 @@ public class Loader {
                 }
                 parser.close();
             }
-        }
-        catch (ArrayIndexOutOfBoundsException e) {
-            JOptionPane.showMessageDialog(null,
-                    e.getMessage(),
-                    "Failure loading data", JOptionPane.WARNING_MESSAGE);
-        } catch (NoSuchElementException e) {
-            JOptionPane.showMessageDialog(null,
-                    "NoSuchElementException",
-                    "Failure loading data", JOptionPane.WARNING_MESSAGE);
+            if(incode)
+                code.setCode(words, count);
         }
     }
 
@@ -4,38 +4,211 @@ import java.util.Observable;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 
 public class MachineModel extends Observable{
     public final Map<Integer, Instruction> INSTRUCTION_MAP = new TreeMap<Integer, Instruction>();
+    /**
+     * The indirection levels any instruction can use: immediate, direct
+     * and indirect
+     */
+    private static final int LEVELS = 3;
+    /**
+     * How many instructions run executes between looks at the clock when
+     * it has a time budget, and between updates of Metrics.GLOBAL
+     */
+    public static final long WATCHDOG_SLICE = 1 << 16;
+    private final Instruction[] dispatch = new Instruction[InstructionMap.OPCODE_COUNT];
+    private final Instruction[] specialized = new Instruction[InstructionMap.OPCODE_COUNT * LEVELS];
+    private final Instruction[] handlers = new Instruction[InstructionMap.OPCODE_COUNT * LEVELS];
     private Registers cpu = new Registers();
-    private Memory memory = new Memory();
-    private boolean withGUI;
+    private Memory memory;
     private Code code;
     private boolean running = false;
+    private Engine engine = Engine.INTERPRETER;
+    private ThreadedCode threadedCode;
+    private boolean fusion = false;
+    private JitCompiler jitCompiler;
+    private int hotLoopThreshold = JitCompiler.HOT_LOOP_THRESHOLD;
+    private final int[] jitRegisters = new int[2];
+    private long stepsExecuted;
+    private UndoLog undoLog;
+    private CycleDetector cycleDetector;
+    private Profile profile;
+    private TraceWriter trace;
+    private boolean cycleFound;
+    // executions by opcode on the table interpreter or while profiling,
+    // not yet added to Metrics.GLOBAL
+    private final long[] opcodeCounts = new long[InstructionMap.OPCODE_COUNT];
+    private final int[] undoRegisters = new int[3];
+
+    /**
+     * The ways a MachineModel can execute its code. INTERPRETER decodes
+     * every instruction as it steps, THREADED translates the loaded code
+     * once into pre-specialized handlers and runs those. TIERED interprets,
+     * but when execute finds a loop that has become hot it compiles it to
+     * JVM bytecode and runs that instead. Single steps are always
+     * interpreted under TIERED.
+     */
+    public enum Engine {
+        INTERPRETER, THREADED, TIERED
+    }
 
     public MachineModel() {
         this(false);
     }
 
+    /**
+     * @param withGUI no longer changes anything: HALT stops the run and
+     * never exits the JVM, with or without a GUI
+     */
     public MachineModel(boolean withGUI) {
-        this.withGUI = withGUI;
+        this(withGUI, Memory.DATA_SIZE);
+    }
+
+    /**
+     * @param memorySize the number of words of data memory, up to
+     * Memory.MAX_SIZE; pages of it are only allocated when written
+     */
+    public MachineModel(int memorySize) {
+        this(false, memorySize);
+    }
+
+    public MachineModel(boolean withGUI, int memorySize) {
+        this(new Memory(memorySize));
+    }
+
+    /**
+     * @param memory the data memory the machine will own, such as an
+     * OffHeapMemory; release gives it back
+     */
+    public MachineModel(Memory memory) {
+        this.memory = memory;
         populate(); //I like concise constructors
     }
 
+    /**
+     * Gives back the machine's memory once it is no longer needed; the
+     * machine cannot run afterwards
+     */
+    public void release() {
+        memory.release();
+    }
+
+    /**
+     * A frozen copy of a machine's registers and memory, to fork from or
+     * restore later. Taking one copies only the registers and the page
+     * table of the memory; the pages stay shared until the machine writes
+     * to them.
+     */
+    public static class Snapshot {
+        private final Memory memory;
+        private final Code code;
+        private final int accumulator, programCounter;
+        private final boolean running;
+
+        private Snapshot(MachineModel model) {
+            this.memory = model.memory.fork();
+            this.code = model.code;
+            this.accumulator = model.cpu.accumulator;
+            this.programCounter = model.cpu.programCounter;
+            this.running = model.running;
+        }
+
+        public int getData(int index) {
+            return memory.getData(index);
+        }
+        public int getMemorySize() {
+            return memory.size();
+        }
+        public Code getCode() {
+            return this.code;
+        }
+        public int getAccumulator() {
+            return this.accumulator;
+        }
+        public int getProgramCounter() {
+            return this.programCounter;
+        }
+        public boolean isRunning() {
+            return this.running;
+        }
+    }
+
+    /**
+     * @return a snapshot of the registers and memory as they are now
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Puts the registers, memory and code back as they were in snapshot,
+     * which can be restored again later
+     */
+    public void restore(Snapshot snapshot) {
+        boolean tracking = memory.isDirtyTracking();
+        this.memory = snapshot.memory.fork();
+        if(tracking) {
+            memory.setDirtyTracking(true);
+            memory.markAllDirty();
+        }
+        this.code = snapshot.code;
+        cpu.accumulator = snapshot.accumulator;
+        cpu.programCounter = snapshot.programCounter;
+        this.running = snapshot.running;
+        if(undoLog != null) {
+            undoLog.clear();
+            memory.setUndoLog(undoLog);
+        }
+        if(profile != null && profile.getMemorySize() != memory.size())
+            profile = new Profile(memory.size());
+    }
+
+    /**
+     * @return a new machine in the same state as this one, with the same
+     * engine settings, that shares this one's memory copy-on-write and
+     * runs the same Code object
+     */
+    public MachineModel fork() {
+        MachineModel child = new MachineModel(1);
+        child.restore(new Snapshot(this));
+        child.engine = this.engine;
+        child.fusion = this.fusion;
+        child.hotLoopThreshold = this.hotLoopThreshold;
+        return child;
+    }
+
     public Code getCode() {
         return this.code;
     }
 
+    /**
+     * Loads code, forgetting any recorded undo history
+     */
     public void setCode(Code code) {
         this.code = code;
+        if(undoLog != null)
+            undoLog.clear();
     }
 
     public int getData(int index) {
         return memory.getData(index);
     }
+    /**
+     * Changes memory from outside the program. The change is not recorded,
+     * so reverse steps leave it in place.
+     */
     public void setData(int index, int value) {
+        if(undoLog == null) {
+            memory.setData(index, value);
+            return;
+        }
+        memory.setUndoLog(null);
         memory.setData(index, value);
+        memory.setUndoLog(undoLog);
     }
     public Instruction get(Integer key) {
         return INSTRUCTION_MAP.get(key);
@@ -62,16 +235,369 @@ public class MachineModel extends Observable{
         this.running = running;
     }
 
+    public Engine getEngine() {
+        return this.engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Turns superinstruction fusion on or off for the THREADED engine.
+     * Fused sequences are only used by run; single steps never fuse.
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    public boolean isFusion() {
+        return this.fusion;
+    }
+
+    /**
+     * @return how many instruction dispatches fused handlers have saved
+     * since the current code was last translated
+     */
+    public long getFusedDispatchesSaved() {
+        return threadedCode == null ? 0 : threadedCode.getDispatchesSaved();
+    }
+
+    public int getMemorySize() {
+        return memory.size();
+    }
+
+    /**
+     * @return Arrays.hashCode of the whole data memory
+     */
+    public int getDataHash() {
+        return memory.hash();
+    }
+
+    Memory getMemory() {
+        return this.memory;
+    }
+
+    /**
+     * Sets how many times a loop must be entered through its backward
+     * jump before TIERED compiles it
+     */
+    void setHotLoopThreshold(int threshold) {
+        this.hotLoopThreshold = threshold;
+        this.jitCompiler = null;
+    }
+
     public int getChangedIndex() {
         return this.memory.getChangedIndex();
     }
 
+    /**
+     * Starts or stops remembering every address written, for drainDirty
+     */
+    public void setDirtyTracking(boolean on) {
+        memory.setDirtyTracking(on);
+    }
+
+    /**
+     * Passes each address written since the last drain to action once and
+     * forgets them; see Memory.drainDirty
+     * @return the number of addresses passed to action
+     */
+    public int drainDirty(IntConsumer action) {
+        return memory.drainDirty(action);
+    }
+
+    public int getChangedLength() {
+        return this.memory.getChangedLength();
+    }
+
+    /**
+     * Starts recording how to undo each instruction, keeping the most
+     * recent ones that fit in capacity slots (one per instruction plus one
+     * per memory change), or stops recording and forgets the history if
+     * capacity is 0. While recording, every engine executes one
+     * instruction at a time, without fused or compiled code.
+     * @throws IllegalArgumentException if capacity is from 1 to 3
+     */
+    public void setRecording(int capacity) {
+        undoLog = capacity == 0 ? null : new UndoLog(capacity);
+        memory.setUndoLog(undoLog);
+    }
+
+    public boolean isRecording() {
+        return undoLog != null;
+    }
+
+    /**
+     * @return how many instructions can be undone with reverseStep
+     */
+    public int getUndoDepth() {
+        return undoLog == null ? 0 : undoLog.size();
+    }
+
+    /**
+     * Undoes the last recorded instruction, restoring the program counter,
+     * accumulator, running flag and memory it started from
+     * @return false if there was nothing recorded to undo
+     */
+    public boolean reverseStep() {
+        if(undoLog == null)
+            return false;
+        memory.setUndoLog(null);
+        try {
+            if(!undoLog.undo(memory, undoRegisters))
+                return false;
+        } finally {
+            memory.setUndoLog(undoLog);
+        }
+        cpu.programCounter = undoRegisters[0];
+        cpu.accumulator = undoRegisters[1];
+        running = undoRegisters[2] != 0;
+        return true;
+    }
+
+    /**
+     * Steps backwards until maxSteps instructions have been undone, the
+     * recording runs out, or the program counter reaches a line for which
+     * stopAt is true
+     * @param stopAt the lines to stop at, or null to stop only at the
+     * start of the recording
+     * @return the number of instructions undone
+     */
+    public long reverseContinue(long maxSteps, IntPredicate stopAt) {
+        long steps = 0;
+        while(steps < maxSteps && reverseStep()) {
+            steps++;
+            if(stopAt != null && stopAt.test(cpu.programCounter))
+                break;
+        }
+        return steps;
+    }
+
+    /**
+     * Turns on or off detection of exact cycles in run: a run that comes
+     * back to a program counter, accumulator and memory it has had before
+     * stops with CYCLE_DETECTED, since it can never halt. While detecting,
+     * every engine executes one instruction at a time.
+     */
+    public void setCycleDetection(boolean on) {
+        cycleDetector = on ? new CycleDetector() : null;
+    }
+
+    public boolean isCycleDetection() {
+        return cycleDetector != null;
+    }
+
+    /**
+     * Turns profiling on, with all counters at 0, or off. While profiling,
+     * execute and run count every instruction, JMPZ outcome and memory
+     * access in getProfile, and every engine executes one instruction at
+     * a time.
+     */
+    public void setProfiling(boolean on) {
+        profile = on ? new Profile(memory.size()) : null;
+    }
+
+    public boolean isProfiling() {
+        return profile != null;
+    }
+
+    /**
+     * @return the counters gathered since profiling was turned on, or null
+     * if it is off
+     */
+    public Profile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * Makes execute and run append a record of every instruction they
+     * execute to trace, or stops tracing if trace is null. While tracing,
+     * every engine executes one instruction at a time. A failure to write
+     * the trace stops the run with an UncheckedIOException.
+     */
+    public void setTrace(TraceWriter trace) {
+        this.trace = trace;
+    }
+
+    public TraceWriter getTrace() {
+        return this.trace;
+    }
+
+    // steps, then records in the trace what the instruction did
+    private void tracedStep(int pc) {
+        long word = code.getWord(pc);
+        int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+        int address = -1;
+        if(level == 1)
+            address = arg;
+        else if(level == 2 && arg >= 0 && arg < memory.size())
+            address = memory.peek(arg);
+        long writes = memory.getWriteCount();
+        step();
+        boolean wrote = memory.getWriteCount() != writes;
+        if(wrote)
+            address = memory.getChangedIndex();
+        trace.record(pc, op, level, address, wrote, wrote ? memory.peek(address) : 0, cpu.accumulator);
+    }
+
     public void step() {
+        if(undoLog != null) {
+            undoLog.step(cpu.programCounter, cpu.accumulator, running);
+            try {
+                singleStep();
+            } catch (RuntimeException e) {
+                // an instruction that fails leaves nothing to undo
+                reverseStep();
+                throw e;
+            }
+            return;
+        }
+        singleStep();
+    }
+
+    private void singleStep() {
         int pc = cpu.programCounter;
-        int opcode = code.getOp(pc);
-        int arg = code.getArg(pc);
-        int indirectionLevel = code.getIndirectionLevel(pc);
-        INSTRUCTION_MAP.get(opcode).execute(arg, indirectionLevel);
+        if(engine == Engine.THREADED) {
+            cpu.programCounter = threadedCode().execute(pc);
+            return;
+        }
+        interpret(pc, code.getWord(pc));
+    }
+
+    /**
+     * Executes instructions until the machine stops running or maxSteps
+     * of them have executed, with the selected engine
+     * @param maxSteps the most instructions to execute
+     * @return the number of instructions executed
+     */
+    long execute(long maxSteps) {
+        long steps = 0;
+        try {
+            if(undoLog != null || cycleDetector != null || profile != null || trace != null) {
+                memory.setProfile(profile);
+                while(running && steps < maxSteps) {
+                    int pc = cpu.programCounter;
+                    if(trace != null)
+                        tracedStep(pc);
+                    else
+                        step();
+                    steps++;
+                    if(profile != null) {
+                        long word = code.getWord(pc);
+                        profile.executed(pc, word, cpu.accumulator);
+                        opcodeCounts[Code.op(word)]++;
+                    }
+                    if(cycleDetector != null && cycleDetector.repeated(cpu.programCounter,
+                                cpu.accumulator, memory.getModificationCount())) {
+                        cycleFound = true;
+                        running = false;
+                    }
+                }
+            } else if(engine == Engine.THREADED) {
+                ThreadedCode threaded = threadedCode();
+                while(running && steps < maxSteps) {
+                    int pc = cpu.programCounter;
+                    int width = threaded.width(pc);
+                    if(width > 1 && width <= maxSteps - steps) {
+                        cpu.programCounter = threaded.executeFused(pc);
+                        steps += width;
+                    } else {
+                        cpu.programCounter = threaded.execute(pc);
+                        steps++;
+                    }
+                }
+            } else if(engine == Engine.TIERED) {
+                JitCompiler jit = jitCompiler();
+                while(running && steps < maxSteps) {
+                    int pc = cpu.programCounter;
+                    JitCompiler.CompiledLoop loop = jit.loopAt(pc);
+                    if(loop != null) {
+                        jitRegisters[0] = cpu.accumulator;
+                        long done = loop.run(memory, jitRegisters, maxSteps - steps);
+                        if(done > 0) {
+                            cpu.accumulator = jitRegisters[0];
+                            cpu.programCounter = jitRegisters[1];
+                            steps += done;
+                            continue;
+                        }
+                    }
+                    long word = code.getWord(pc);
+                    interpret(pc, word);
+                    steps++;
+                    int op = Code.op(word);
+                    if(cpu.programCounter <= pc && (op == 0xB || op == 0xC)
+                            && Code.indirectionLevel(word) == 0) {
+                        jit.backEdge(pc, cpu.programCounter);
+                    }
+                }
+            } else {
+                while(running && steps < maxSteps) {
+                    int pc = cpu.programCounter;
+                    long word = code.getWord(pc);
+                    interpret(pc, word);
+                    opcodeCounts[Code.op(word)]++;
+                    steps++;
+                }
+            }
+        } finally {
+            stepsExecuted = steps;
+            memory.setProfile(null);
+        }
+        return steps;
+    }
+
+    /**
+     * @return how many instructions the last call to execute completed,
+     * which is still known when it ended by throwing
+     */
+    long getStepsExecuted() {
+        return this.stepsExecuted;
+    }
+
+    /**
+     * @return the back-edge counters and compiled loops for the current
+     * code, started afresh whenever the code has been replaced or changed
+     */
+    private JitCompiler jitCompiler() {
+        if(jitCompiler == null || !jitCompiler.isTranslationOf(code, memory)) {
+            jitCompiler = new JitCompiler(code, memory, hotLoopThreshold);
+        }
+        return jitCompiler;
+    }
+
+    /**
+     * @return the translation of the current code, redone whenever the
+     * code has been replaced or changed since it was last translated, and
+     * pointed at the current memory, which restore replaces
+     */
+    private ThreadedCode threadedCode() {
+        if(threadedCode == null || !threadedCode.isTranslationOf(code, memory, fusion)) {
+            threadedCode = new ThreadedCode(this, code, fusion);
+        } else {
+            threadedCode.setMemory(memory);
+        }
+        return threadedCode;
+    }
+
+    /**
+     * Decodes one packed instruction and executes it through the
+     * dispatch table
+     * @param pc the line the instruction was fetched from
+     * @param word the packed instruction, see Code.encode
+     */
+    void interpret(int pc, long word) {
+        int opcode = Code.op(word);
+        int arg = Code.arg(word);
+        int indirectionLevel = Code.indirectionLevel(word);
+        Instruction instr = null;
+        if(opcode >= 0 && opcode < dispatch.length) {
+            instr = indirectionLevel >= 0 && indirectionLevel < LEVELS
+                ? handlers[opcode * LEVELS + indirectionLevel] : dispatch[opcode];
+        }
+        if(instr == null)
+            throw new IllegalArgumentException("Illegal opcode " + opcode + " at line " + pc);
+        instr.execute(arg, indirectionLevel);
     }
 
     public void clear() {
@@ -83,11 +609,74 @@ public class MachineModel extends Observable{
 
 
     public void halt() {
-        if(withGUI) {
+        running = false;
+    }
+
+    /**
+     * Runs the loaded program from the current program counter until it
+     * halts, an instruction fails or maxSteps instructions have executed,
+     * without notifying any observers along the way
+     * @param maxSteps the most instructions to execute
+     * @return why the run stopped, with the step count and final registers
+     */
+    public RunResult run(long maxSteps) {
+        return run(maxSteps, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs like run(maxSteps), but also stops with TIMED_OUT once maxNanos
+     * of wall clock time have passed. The clock is only read between
+     * slices of WATCHDOG_SLICE instructions, so the budget costs nothing
+     * per instruction and can be overshot by one slice.
+     */
+    public RunResult run(long maxSteps, long maxNanos) {
+        running = true;
+        cycleFound = false;
+        if(cycleDetector != null)
+            cycleDetector.reset();
+        long start = maxNanos == Long.MAX_VALUE ? 0 : System.nanoTime();
+        RunResult.Status status;
+        RuntimeException trap = null;
+        long steps = 0;
+        long writes = memory.getWriteCount();
+        Metrics.GLOBAL.started();
+        try {
+            while(true) {
+                long done = execute(Math.min(maxSteps - steps, WATCHDOG_SLICE));
+                steps += done;
+                writes = publish(done, writes);
+                if(!running) {
+                    status = cycleFound ? RunResult.Status.CYCLE_DETECTED : RunResult.Status.HALTED;
+                    break;
+                }
+                if(steps >= maxSteps) {
+                    status = RunResult.Status.BUDGET_EXHAUSTED;
+                    break;
+                }
+                if(maxNanos != Long.MAX_VALUE && System.nanoTime() - start >= maxNanos) {
+                    status = RunResult.Status.TIMED_OUT;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            steps += stepsExecuted;
+            publish(stepsExecuted, writes);
+            Metrics.GLOBAL.trapped(e);
+            status = RunResult.Status.TRAPPED;
+            trap = e;
             running = false;
-        } else {
-            System.exit(0);
+        } finally {
+            Metrics.GLOBAL.stopped();
         }
+        return new RunResult(status, steps, cpu.programCounter, cpu.accumulator, trap);
+    }
+
+    // adds a slice of run to Metrics.GLOBAL and returns the new write count
+    private long publish(long steps, long writesBefore) {
+        long writes = memory.getWriteCount();
+        Metrics.GLOBAL.executed(steps, writes - writesBefore);
+        Metrics.GLOBAL.executed(opcodeCounts);
+        return writes;
     }
 
     public void clearMemory() {
@@ -98,171 +687,210 @@ public class MachineModel extends Observable{
         private int accumulator, programCounter;
     }
 
+    /**
+     * Registers the handler for one opcode at one indirection level. The
+     * handler never checks the level; it resolves its operand with exactly
+     * as many memory reads as the level calls for.
+     */
+    private void specialize(int opcode, int level, Instruction handler) {
+        specialized[opcode * LEVELS + level] = handler;
+    }
+
+    /**
+     * @return an INSTRUCTION_MAP entry that runs the specialized handler
+     * for the level it is given, or throws with message if there is none
+     */
+    private Instruction checkedLevels(int opcode, String message) {
+        return (arg, level) -> {
+            Instruction handler = level >= 0 && level < LEVELS
+                ? specialized[opcode * LEVELS + level] : null;
+            if(handler == null)
+                throw new IllegalArgumentException(message);
+            handler.execute(arg, level);
+        };
+    }
+
     private void populate() {
 
         //INSTRUCTION_MAP entry for "NOP"
-        INSTRUCTION_MAP.put(0x0,(arg,level) -> {
-            if(level != 0)
-                throw new IllegalArgumentException(
-                        "Ay, level isn't zero!");
-            cpu.programCounter++;
-        });
+        specialize(0x0, 0, (arg, level) -> cpu.programCounter++);
+        INSTRUCTION_MAP.put(0x0, checkedLevels(0x0, "Ay, level isn't zero!"));
 
         //INSTRUCTION_MAP entry for "LOD"
-        INSTRUCTION_MAP.put(0x1,(arg,level) -> {
-            if(level < 0 || level > 2) {
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in LOD instruction");
-            }
-            if(level == 0) {
-                this.cpu.accumulator = arg;
-                this.cpu.programCounter++;
-            }
-            else
-                INSTRUCTION_MAP.get(0x1).execute(memory.getData(arg), level-1);
+        specialize(0x1, 0, (arg, level) -> {
+            cpu.accumulator = arg;
+            cpu.programCounter++;
         });
+        specialize(0x1, 1, (arg, level) -> {
+            cpu.accumulator = memory.getData(arg);
+            cpu.programCounter++;
+        });
+        specialize(0x1, 2, (arg, level) -> {
+            cpu.accumulator = memory.getData(memory.getData(arg));
+            cpu.programCounter++;
+        });
+        INSTRUCTION_MAP.put(0x1, checkedLevels(0x1,
+                    "Illegal indirection level in LOD instruction"));
 
         //INSTRUCTION_MAP entry for "STO"
-        INSTRUCTION_MAP.put(0x2,(arg,level) -> {
-            if(level != 1 && level != 2)
-                throw new IllegalArgumentException(
-                        "Level must be 1 or 2 for STO instruction");
-            if(level == 1) {
-                memory.setData(arg, cpu.accumulator);
-                this.cpu.programCounter++;
-            }
-            else
-                INSTRUCTION_MAP.get(0x2).execute(memory.getData(arg), level-1);
+        specialize(0x2, 1, (arg, level) -> {
+            memory.setData(arg, cpu.accumulator);
+            cpu.programCounter++;
+        });
+        specialize(0x2, 2, (arg, level) -> {
+            memory.setData(memory.getData(arg), cpu.accumulator);
+            cpu.programCounter++;
         });
+        INSTRUCTION_MAP.put(0x2, checkedLevels(0x2,
+                    "Level must be 1 or 2 for STO instruction"));
 
         //INSTRUCTION_MAP entry for "ADD"
-        INSTRUCTION_MAP.put(0x3,(arg, level) -> {
-            if(level < 0 || level > 2) {
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in ADD instruction");
-            }
-            if (level > 0) {
-                INSTRUCTION_MAP.get(0x3).execute(memory.getData(arg), level-1);
-            } else {
-                cpu.accumulator += arg;
-                cpu.programCounter ++;
-            }
+        specialize(0x3, 0, (arg, level) -> {
+            cpu.accumulator += arg;
+            cpu.programCounter++;
+        });
+        specialize(0x3, 1, (arg, level) -> {
+            cpu.accumulator += memory.getData(arg);
+            cpu.programCounter++;
         });
+        specialize(0x3, 2, (arg, level) -> {
+            cpu.accumulator += memory.getData(memory.getData(arg));
+            cpu.programCounter++;
+        });
+        INSTRUCTION_MAP.put(0x3, checkedLevels(0x3,
+                    "Illegal indirection level in ADD instruction"));
 
         //INSTRUCTION_MAP entry for "SUB"
-        INSTRUCTION_MAP.put(0x4,(arg,level) -> {
-            if(level < 0 || level > 2) {
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in SUB instruction");
-            }
-            if (level > 0) {
-                INSTRUCTION_MAP.get(0x4).execute(memory.getData(arg), level-1);
-            } else {
-                cpu.accumulator -= arg;
-                cpu.programCounter ++;
-            }
+        specialize(0x4, 0, (arg, level) -> {
+            cpu.accumulator -= arg;
+            cpu.programCounter++;
         });
+        specialize(0x4, 1, (arg, level) -> {
+            cpu.accumulator -= memory.getData(arg);
+            cpu.programCounter++;
+        });
+        specialize(0x4, 2, (arg, level) -> {
+            cpu.accumulator -= memory.getData(memory.getData(arg));
+            cpu.programCounter++;
+        });
+        INSTRUCTION_MAP.put(0x4, checkedLevels(0x4,
+                    "Illegal indirection level in SUB instruction"));
 
         //INSTRUCTION_MAP entry for "MUL"
-        INSTRUCTION_MAP.put(0x5,(arg,level) -> {
-            if(level < 0 || level > 2) {
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in MUL instruction");
-            }
-            if (level > 0) {
-                INSTRUCTION_MAP.get(0x5).execute(memory.getData(arg), level-1);
-            } else {
-                cpu.accumulator *= arg;
-                cpu.programCounter ++;
-            }
+        specialize(0x5, 0, (arg, level) -> {
+            cpu.accumulator *= arg;
+            cpu.programCounter++;
+        });
+        specialize(0x5, 1, (arg, level) -> {
+            cpu.accumulator *= memory.getData(arg);
+            cpu.programCounter++;
         });
+        specialize(0x5, 2, (arg, level) -> {
+            cpu.accumulator *= memory.getData(memory.getData(arg));
+            cpu.programCounter++;
+        });
+        INSTRUCTION_MAP.put(0x5, checkedLevels(0x5,
+                    "Illegal indirection level in MUL instruction"));
 
         //INSTRUCTION_MAP entry for "DIV"
-        INSTRUCTION_MAP.put(0x6,(arg,level) -> {
-            if(level < 0 || level > 2) {
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in DIV instruction");
-            }
+        //a zero anywhere along the chain of addresses counts as division by zero
+        specialize(0x6, 0, (arg, level) -> {
             if(arg == 0)
                 throw new DivideByZeroException("Division by Zero");
-            if (level > 0) {
-                INSTRUCTION_MAP.get(0x6).execute(memory.getData(arg), level-1);
-            } else {
-                cpu.accumulator /= arg;
-                cpu.programCounter ++;
-            }
+            cpu.accumulator /= arg;
+            cpu.programCounter++;
+        });
+        specialize(0x6, 1, (arg, level) -> {
+            if(arg == 0)
+                throw new DivideByZeroException("Division by Zero");
+            int divisor = memory.getData(arg);
+            if(divisor == 0)
+                throw new DivideByZeroException("Division by Zero");
+            cpu.accumulator /= divisor;
+            cpu.programCounter++;
         });
+        specialize(0x6, 2, (arg, level) -> {
+            if(arg == 0)
+                throw new DivideByZeroException("Division by Zero");
+            int address = memory.getData(arg);
+            if(address == 0)
+                throw new DivideByZeroException("Division by Zero");
+            int divisor = memory.getData(address);
+            if(divisor == 0)
+                throw new DivideByZeroException("Division by Zero");
+            cpu.accumulator /= divisor;
+            cpu.programCounter++;
+        });
+        INSTRUCTION_MAP.put(0x6, checkedLevels(0x6,
+                    "Illegal indirection level in DIV instruction"));
 
         //INSTRUCTION_MAP entry for "AND"
-        INSTRUCTION_MAP.put(0x7,(arg,level) -> {
-            if(level != 1 && level != 0)
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in AND instruction");
-            if(level == 0) {
-                cpu.accumulator = cpu.accumulator != 0 && arg != 0 ? 1 : 0;
-                cpu.programCounter++;
-            }
-            else
-                INSTRUCTION_MAP.get(0x7).execute(memory.getData(arg), level-1);
+        specialize(0x7, 0, (arg, level) -> {
+            cpu.accumulator = cpu.accumulator != 0 && arg != 0 ? 1 : 0;
+            cpu.programCounter++;
         });
+        specialize(0x7, 1, (arg, level) -> {
+            int value = memory.getData(arg);
+            cpu.accumulator = cpu.accumulator != 0 && value != 0 ? 1 : 0;
+            cpu.programCounter++;
+        });
+        INSTRUCTION_MAP.put(0x7, checkedLevels(0x7,
+                    "Illegal indirection level in AND instruction"));
 
         //INSTRUCTION_MAP entry for "NOT"
-        INSTRUCTION_MAP.put(0x8,(arg,level) -> {
-            if(level != 0)
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in NOT instruction");
+        specialize(0x8, 0, (arg, level) -> {
             cpu.accumulator = cpu.accumulator == 0 ? 1 : 0;
             cpu.programCounter++;
         });
+        INSTRUCTION_MAP.put(0x8, checkedLevels(0x8,
+                    "Illegal indirection level in NOT instruction"));
 
         //INSTRUCTION_MAP entry for "CMPZ"
-        INSTRUCTION_MAP.put(0x9,(arg,level) -> {
-            if(level != 1)
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in CMPZ instruction");
+        specialize(0x9, 1, (arg, level) -> {
             cpu.accumulator = memory.getData(arg) == 0 ? 1 : 0;
             cpu.programCounter++;
         });
+        INSTRUCTION_MAP.put(0x9, checkedLevels(0x9,
+                    "Illegal indirection level in CMPZ instruction"));
 
         //INSTRUCTION_MAP entry for "CMPL"
-        INSTRUCTION_MAP.put(0xA,(arg,level) -> {
-            if(level != 1)
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in CMPL instruction");
+        specialize(0xA, 1, (arg, level) -> {
             cpu.accumulator = memory.getData(arg) < 0 ? 1 : 0;
             cpu.programCounter++;
         });
+        INSTRUCTION_MAP.put(0xA, checkedLevels(0xA,
+                    "Illegal indirection level in CMPL instruction"));
 
         //INSTRUCTION_MAP entry for "JUMP"
-        INSTRUCTION_MAP.put(0xB,(arg,level) -> {
-            if(level != 0 && level != 1)
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in JUMP instruction");
-            if(level == 0)
+        specialize(0xB, 0, (arg, level) -> cpu.programCounter = arg);
+        specialize(0xB, 1, (arg, level) -> cpu.programCounter = memory.getData(arg));
+        INSTRUCTION_MAP.put(0xB, checkedLevels(0xB,
+                    "Illegal indirection level in JUMP instruction"));
+
+        //INSTRUCTION_MAP entry for "JMPZ"
+        specialize(0xC, 0, (arg, level) -> {
+            if(cpu.accumulator == 0)
                 cpu.programCounter = arg;
             else
-                INSTRUCTION_MAP.get(0xB).execute(memory.getData(arg), level-1);
+                cpu.programCounter++;
         });
-
-        //INSTRUCTION_MAP entry for "JMPZ"
-        INSTRUCTION_MAP.put(0xC,(arg,level) -> {
-            if(level != 0 && level != 1)
-                throw new IllegalArgumentException(
-                        "Illegal indirection level in JMPZ instruction");
-            if(level == 0) {
-                if(cpu.accumulator == 0)
-                    cpu.programCounter = arg;
-                else
-                    cpu.programCounter++;
-            }
+        specialize(0xC, 1, (arg, level) -> {
+            int target = memory.getData(arg);
+            if(cpu.accumulator == 0)
+                cpu.programCounter = target;
             else
-                INSTRUCTION_MAP.get(0xC).execute(memory.getData(arg), level-1);
+                cpu.programCounter++;
         });
+        INSTRUCTION_MAP.put(0xC, checkedLevels(0xC,
+                    "Illegal indirection level in JMPZ instruction"));
 
-        //INSTRUCTION_MAP entry for "HALT"
+        //INSTRUCTION_MAP entry for "HALT", which takes any level
         INSTRUCTION_MAP.put(0xF,(arg,level) -> {
             halt();
         });
+        for(int level = 0; level < LEVELS; level++) {
+            specialize(0xF, level, INSTRUCTION_MAP.get(0xF));
+        }
 
         //INSTRUCTION_MAP entry for "ROT"
         /**
@@ -281,28 +909,42 @@ public class MachineModel extends Observable{
             int start = memory.getData(arg);
             int length = memory.getData(arg + 1);
             int move = memory.getData(arg + 2);
-            if(start<0 || length<0 || start+length-1 >= Memory.DATA_SIZE || start <= arg + 2 || start + length -1 <= arg) {
+            if(start<0 || length<0 || start+length-1 >= memory.size() || start <= arg + 2 || start + length -1 <= arg) {
                 throw new IllegalArgumentException("Illegal Argument(s) for 'ROT' instruction.");
             }
             if(move == 0) {
                 return;
             }
-            else if(move > 0) {
-                setAccumulator(memory.getData(start));
-                for(int i=0;i<length - 1;i++) {
-                    int prev = memory.getData(start + i + 1);
-                    memory.setData(start + i + 1, getAccumulator());
-                    setAccumulator(prev);
-                }
-                memory.setData(start, getAccumulator());
-                memory.setData(arg + 2, move - 1); //Woah dude, recursion.
-                INSTRUCTION_MAP.get(0x14).execute(arg, level);
+            if(length == 0) {
+                //Nothing to turn, and no way to bring a left-shift round.
+                if(move < 0)
+                    throw new IllegalArgumentException("Illegal Argument(s) for 'ROT' instruction.");
+                int first = memory.getData(start);
+                memory.setData(arg + 2, 0);
+                cpu.accumulator = first;
+                return;
             }
-            else {
-                //Move is negative, but circles are circles.
-                memory.setData(arg + 2, length + move);
-                INSTRUCTION_MAP.get(0x14).execute(arg, level);
+            //Move is negative, but circles are circles: a left-shift is the
+            //right-shift that brings the same element to the front. The
+            //count at arg + 2 is used up either way.
+            int distance = Math.floorMod(move, length);
+            memory.setData(arg + 2, 0);
+            if(move > 0 || distance > 0) {
+                memory.rotate(start, length, distance);
+                cpu.accumulator = memory.getData(start);
             }
         });
+
+        specialize(0x14, 1, INSTRUCTION_MAP.get(0x14));
+
+        // every (opcode, level) pair without a handler of its own gets the
+        // checked entry, which reports the illegal level
+        for(Map.Entry<Integer, Instruction> entry : INSTRUCTION_MAP.entrySet()) {
+            dispatch[entry.getKey()] = entry.getValue();
+            for(int level = 0; level < LEVELS; level++) {
+                int index = entry.getKey() * LEVELS + level;
+                handlers[index] = specialized[index] != null ? specialized[index] : entry.getValue();
+            }
+        }
     }
 }
@@ -18,12 +18,31 @@ import java.io.PrintWriter;
 import java.io.FileOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
 
 
 public class MachineView extends Observable {
-    private static final int TICK = 50;
+    static final int TICK = 50;
+    /**
+     * Milliseconds between frames while the engine thread runs
+     */
+    private static final int FRAME = 25;
+    /**
+     * The most instructions the engine thread runs while holding the
+     * machine, so a frame never waits long for its snapshot
+     */
+    private static final long ENGINE_BATCH = 1 << 14;
+    /**
+     * The auto-step speeds offered, in steps per second. 0 is one step per
+     * TICK on the event thread, anything else runs on the engine thread,
+     * and Long.MAX_VALUE as fast as it can.
+     */
+    public static final long[] SPEEDS = {0, 1000, 100000, 1000000, 10000000, Long.MAX_VALUE};
 
     private MachineModel model;
     private String defaultDir, sourceDir, executableDir;
@@ -40,6 +59,13 @@ public class MachineView extends Observable {
     private boolean autoStepOn = false;
     private File currentlyExecutingFile = null;
     private boolean running = false;
+    private int[] dirtyCells = new int[0];
+    private long stepsPerSecond = 0;
+    private volatile boolean engineStop;
+    private Thread engine;
+    // the machine as of the last notification, which is all observers see
+    private final List<DataWindow> windows = new ArrayList<>();
+    private int programCounter, accumulator, changedIndex = -1, changedLength;
 
     /**
      * Main method that drives the whole simulator
@@ -55,25 +81,111 @@ public class MachineView extends Observable {
 
     public MachineView(MachineModel model) {
         this.model = model;
+        model.setDirtyTracking(true);
         locateDefaultDirectory();
         loadPropertiesFile();
         createAndShowGUI();
     }
 
-    public int getData(int index) {
-        return this.model.getData(index);
+    /**
+     * The data addresses an observer has in view, copied from the machine
+     * with every snapshot, so the snapshot costs the rows on screen and
+     * not the size of the memory
+     */
+    public static class DataWindow {
+        private int start;
+        private int[] values = new int[0];
+
+        /**
+         * @return the value at address as of the last snapshot, or 0 if
+         * the address is not in this window
+         */
+        public int getData(int address) {
+            int i = address - start;
+            return i >= 0 && i < values.length ? values[i] : 0;
+        }
+
+        public boolean contains(int address) {
+            return address >= start && address < start + values.length;
+        }
+
+        private void copy(MachineModel model) {
+            int length = Math.max(0, Math.min(values.length, model.getMemorySize() - start));
+            for(int i = 0; i < length; i++) {
+                values[i] = model.getData(start + i);
+            }
+        }
+    }
+
+    /**
+     * @return a window on no addresses, copied with every snapshot until
+     * moved elsewhere by moveWindow
+     */
+    public DataWindow openWindow() {
+        DataWindow window = new DataWindow();
+        windows.add(window);
+        return window;
+    }
+
+    /**
+     * Points window at the length addresses from start and copies them
+     * from the machine now, under the lock the engine thread runs under
+     */
+    public void moveWindow(DataWindow window, int start, int length) {
+        synchronized(model) {
+            window.start = start;
+            if(window.values.length != length)
+                window.values = new int[length];
+            window.copy(model);
+        }
     }
 
     public int getProgramCounter() {
-        return this.model.getProgramCounter();
+        return this.programCounter;
     }
 
     public int getAccumulator() {
-        return this.model.getAccumulator();
+        return this.accumulator;
     }
 
     public int getChangedIndex() {
-        return this.model.getChangedIndex();
+        return this.changedIndex;
+    }
+
+    public int getChangedLength() {
+        return this.changedLength;
+    }
+
+    /**
+     * @return the addresses written since the previous notification, so
+     * observers only have to redraw those
+     */
+    public int[] getDirtyCells() {
+        return this.dirtyCells;
+    }
+
+    /**
+     * Takes a snapshot of the machine for the observers and notifies them.
+     * Only the registers, the addresses written since the last
+     * notification and the open windows are read, under the same lock the
+     * engine thread runs under, so observers see the machine as it was
+     * between two batches, whatever it does next.
+     */
+    @Override
+    public void notifyObservers(Object arg) {
+        synchronized(model) {
+            IntStream.Builder cells = IntStream.builder();
+            model.drainDirty(cells);
+            dirtyCells = cells.build().toArray();
+            for(DataWindow window : windows) {
+                window.copy(model);
+            }
+            programCounter = model.getProgramCounter();
+            accumulator = model.getAccumulator();
+            changedIndex = model.getChangedIndex();
+            changedLength = model.getChangedLength();
+        }
+        super.notifyObservers(arg);
     }
 
     public States getState() {
@@ -86,53 +198,9 @@ public class MachineView extends Observable {
 
     public void step() {
         if(model.isRunning()) {
-            try {
-                model.step();
-            }
-            catch (IllegalArgumentException e) {
-                JOptionPane.showMessageDialog(
-                        frame,
-                        "Program error from line " + getProgramCounter() + "\n"
-                        + "Exception message: " + e.getMessage(),
-                        "Run time error",
-                        JOptionPane.OK_OPTION);
-                halt();
-            }
-            catch (ArrayIndexOutOfBoundsException e) {
-                JOptionPane.showMessageDialog(
-                        frame,
-                        "Program error from line " + getProgramCounter() + "\n"
-                        + "Exception message: " + e.getMessage(),
-                        "Run time error",
-                        JOptionPane.OK_OPTION);
-                halt();
-            }
-            catch (IndexOutOfBoundsException e) {
-                JOptionPane.showMessageDialog(
-                        frame,
-                        "Program error from line " + getProgramCounter() + "\n"
-                        + "Exception message: " + e.getMessage(),
-                        "Run time error",
-                        JOptionPane.OK_OPTION);
-                halt();
-            }
-            catch (NullPointerException e) {
-                JOptionPane.showMessageDialog(
-                        frame,
-                        "Program error from line " + getProgramCounter() + "\n"
-                        + "Exception message: " + e.getMessage(),
-                        "Run time error",
-                        JOptionPane.OK_OPTION);
-                halt();
-            }
-            catch (DivideByZeroException e) {
-                JOptionPane.showMessageDialog(
-                        frame,
-                        "Program error from line " + getProgramCounter() + "\n"
-                        + "Exception message: " + e.getMessage(),
-                        "Run time error",
-                        JOptionPane.OK_OPTION);
-                halt();
+            RunResult result = model.run(1);
+            if(result.getStatus() == RunResult.Status.TRAPPED) {
+                reportRunTimeError(result);
             }
             setChanged();
             notifyObservers();
@@ -141,11 +209,95 @@ public class MachineView extends Observable {
             halt();
     }
 
+    private void reportRunTimeError(RunResult result) {
+        JOptionPane.showMessageDialog(
+                frame,
+                "Program error from line " + result.getProgramCounter() + "\n"
+                + "Exception message: " + result.getTrap().getMessage(),
+                "Run time error",
+                JOptionPane.OK_OPTION);
+        halt();
+    }
+
     public void toggleAutoStep() {
         setAutoStepOn(!autoStepOn);
     }
 
+    public long getStepsPerSecond() {
+        return this.stepsPerSecond;
+    }
+
+    /**
+     * Sets the auto-step speed, see SPEEDS, and switches a running
+     * auto-step over to it
+     */
+    public void setStepsPerSecond(long stepsPerSecond) {
+        this.stepsPerSecond = stepsPerSecond;
+        if(autoStepOn) {
+            stopEngine();
+            if(stepsPerSecond > 0)
+                startEngine();
+        }
+    }
+
+    private void startEngine() {
+        long rate = stepsPerSecond;
+        engineStop = false;
+        engine = new Thread(() -> runEngine(rate), "pippin engine");
+        engine.setDaemon(true);
+        engine.start();
+    }
+
+    // stops the engine thread and waits for it to let go of the machine
+    private void stopEngine() {
+        Thread thread = engine;
+        if(thread == null)
+            return;
+        engine = null;
+        engineStop = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the engine thread: runs batches of instructions, pacing them to
+    // rate steps per second, until stopped or the program ends
+    private void runEngine(long rate) {
+        Thread self = Thread.currentThread();
+        long start = System.nanoTime(), done = 0;
+        RunResult result = null;
+        while(!engineStop) {
+            long due = rate == Long.MAX_VALUE ? ENGINE_BATCH
+                : (long)((System.nanoTime() - start) / 1e9 * rate) - done;
+            if(due <= 0) {
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            synchronized(model) {
+                result = model.run(Math.min(due, ENGINE_BATCH));
+            }
+            done += result.getSteps();
+            if(result.getStatus() != RunResult.Status.BUDGET_EXHAUSTED)
+                break;
+        }
+        if(engineStop)
+            return;
+        RunResult last = result;
+        javax.swing.SwingUtilities.invokeLater(() -> {
+            if(engine != self)
+                return;
+            engine = null;
+            if(last.getStatus() == RunResult.Status.TRAPPED)
+                reportRunTimeError(last);
+            else
+                halt();
+        });
+    }
+
     public void clearAll() {
+        stopEngine();
         model.clear();
         state = States.NOTHING_LOADED;
         state.enter();
@@ -159,13 +311,14 @@ public class MachineView extends Observable {
     }
 
     public void execute() {
-        while(running) {
-            if(model.isRunning()) {
-                model.step();
+        stopEngine();
+        if(running && model.isRunning()) {
+            RunResult result = model.run(Long.MAX_VALUE);
+            if(result.getStatus() == RunResult.Status.TRAPPED) {
+                reportRunTimeError(result);
             }
-            else
-                halt();
         }
+        halt();
         setChanged();
         notifyObservers();
     }
@@ -228,6 +381,7 @@ public class MachineView extends Observable {
         if(running) {
             state = States.PROGRAM_LOADED_NOT_AUTOSTEPPING;
         } else {
+            stopEngine();
             autoStepOn = false;
             state = States.PROGRAM_HALTED;
         }
@@ -239,8 +393,11 @@ public class MachineView extends Observable {
     public void setAutoStepOn(boolean b) {
         autoStepOn = b;
         if(autoStepOn) {
+            if(stepsPerSecond > 0 && engine == null)
+                startEngine();
             state = States.AUTO_STEPPING;
         } else {
+            stopEngine();
             state = States.PROGRAM_LOADED_NOT_AUTOSTEPPING;
         }
         state.enter();
@@ -300,7 +457,7 @@ public class MachineView extends Observable {
         codeViewPanel = new CodeViewPanel(this);
         memoryViewPanel1 = new MemoryViewPanel(this, 0, 160);
         memoryViewPanel2 = new MemoryViewPanel(this, 160, 240);
-        memoryViewPanel3 = new MemoryViewPanel(this, 240, Memory.DATA_SIZE);
+        memoryViewPanel3 = new MemoryViewPanel(this, 240, model.getMemorySize());
         controlPanel = new ControlPanel(this);
         processorPanel = new ProcessorViewPanel(this);
         menuBuilder = new MenuBarBuilder(this);
@@ -333,8 +490,15 @@ public class MachineView extends Observable {
         state.enter();
         setChanged();
         notifyObservers();
-        javax.swing.Timer timer = new javax.swing.Timer(TICK, e -> {if(autoStepOn) step();});
+        javax.swing.Timer timer = new javax.swing.Timer(TICK, e -> {if(autoStepOn && engine == null) step();});
         timer.start();
+        javax.swing.Timer frameTimer = new javax.swing.Timer(FRAME, e -> {
+            if(engine != null) {
+                setChanged();
+                notifyObservers();
+            }
+        });
+        frameTimer.start();
         frame.setVisible(true);
     }
 
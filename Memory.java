@@ -1,30 +1,404 @@
 package pippin;
 
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.IntConsumer;
+
+/**
+ * The data memory, kept in fixed size pages so that forks can share them.
+ * fork gives a new Memory with the same contents that shares every page
+ * with this one; whichever of the two first writes to a shared page copies
+ * it, so forks cost a page table until they diverge.
+ *
+ * A page is only allocated when something is first written to it; until
+ * then it reads as zeros. A large memory that a program only touches in
+ * a few places therefore costs little more than its page table.
+ */
 public class Memory {
     public static final int DATA_SIZE = 512;
-    private int[] data = new int[DATA_SIZE];
+    /**
+     * The largest memory that can be configured, 2^28 words
+     */
+    public static final int MAX_SIZE = 1 << 28;
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int ZERO_PAGE_FACTOR = power31(PAGE_SIZE);
+
+    private final int size;
+    // pages[p] is null until address p * PAGE_SIZE or one after it is written
+    private final int[][] pages;
+    // owned[p] is false while pages[p] may be shared with a fork
+    private final boolean[] owned;
     private int changedIndex = -1;
+    private int changedLength = 0;
+    private UndoLog undoLog;
+    private Profile profile;
+    private long modifications;
+    private long writes;
+    // null unless dirty tracking is on; dirtyList holds each address whose
+    // bit is set, in the order they were first written
+    private long[] dirtyBits;
+    private int[] dirtyList;
+    private int dirtyCount;
+    private boolean allDirty;
+
+    public Memory() {
+        this(DATA_SIZE);
+    }
+
+    /**
+     * @param size the number of words, from 1 to MAX_SIZE
+     */
+    public Memory(int size) {
+        this(size, true);
+    }
+
+    /**
+     * @param paged false for a subclass that keeps the words itself and
+     * overrides every method that reads or writes them
+     */
+    Memory(int size, boolean paged) {
+        if(size < 1 || size > MAX_SIZE)
+            throw new IllegalArgumentException("Memory size " + size + " is not from 1 to " + MAX_SIZE);
+        this.size = size;
+        this.pages = paged ? new int[(size + PAGE_MASK) >> PAGE_SHIFT][] : null;
+        this.owned = paged ? new boolean[pages.length] : null;
+    }
 
+    private Memory(Memory parent) {
+        this.size = parent.size;
+        this.pages = parent.pages.clone();
+        this.owned = new boolean[pages.length];
+        Arrays.fill(parent.owned, false);
+        this.changedIndex = parent.changedIndex;
+        this.changedLength = parent.changedLength;
+    }
+
+    /**
+     * @return a copy of this memory that shares all its pages with this
+     * one until either of them writes to a page
+     */
+    public Memory fork() {
+        return new Memory(this);
+    }
+
+    /**
+     * @return the first address of the last change, or -1 if there has
+     * been none since the memory was cleared
+     */
     public int getChangedIndex() {
         return this.changedIndex;
     }
 
+    /**
+     * @return how many addresses, from getChangedIndex on, the last
+     * change covered: 1 after setData, the whole range after rotate
+     */
+    public int getChangedLength() {
+        return this.changedLength;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
     public int getData(int index) {
-        return this.data[index];
+        if(index < 0 || index >= size)
+            throw outOfBounds(index);
+        if(profile != null)
+            profile.read(index);
+        int[] page = pages[index >> PAGE_SHIFT];
+        return page == null ? 0 : page[index & PAGE_MASK];
     }
 
     public void setData(int index, int value) {
+        if(index < 0 || index >= size)
+            throw outOfBounds(index);
+        changed(index, 1);
+        int[] page = writablePage(index >> PAGE_SHIFT);
+        int old = page[index & PAGE_MASK];
+        if(old != value)
+            modifications++;
+        if(undoLog != null)
+            undoLog.write(index, old);
+        page[index & PAGE_MASK] = value;
+    }
+
+    /**
+     * Reads a word like getData, but without counting it in a profile
+     */
+    int peek(int index) {
+        int[] page = pages[index >> PAGE_SHIFT];
+        return page == null ? 0 : page[index & PAGE_MASK];
+    }
+
+    /**
+     * Makes every later setData and rotate record how to undo itself in
+     * log, or stops recording if log is null
+     */
+    void setUndoLog(UndoLog log) {
+        this.undoLog = log;
+    }
+
+    UndoLog getUndoLog() {
+        return this.undoLog;
+    }
+
+    /**
+     * Makes every later getData, setData and rotate count itself in
+     * profile, or stops counting if profile is null
+     */
+    void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    Profile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * @return a count that goes up whenever a write gives some address a
+     * different value, so that equal counts mean unchanged contents
+     */
+    public long getModificationCount() {
+        return this.modifications;
+    }
+
+    /**
+     * @return a count that goes up with every setData and rotate, whether
+     * or not it changed a value
+     */
+    long getWriteCount() {
+        return this.writes;
+    }
+
+    /**
+     * Counts a write that may have changed a value
+     */
+    void modified() {
+        modifications++;
+    }
+
+    /**
+     * Records a change to length addresses from index on, for
+     * getChangedIndex, getChangedLength and dirty tracking. An index of -1
+     * means the whole memory was cleared.
+     */
+    void changed(int index, int length) {
         this.changedIndex = index;
-        this.data[index] = value;
+        this.changedLength = length;
+        if(index >= 0) {
+            writes++;
+            if(profile != null)
+                profile.written(index, length);
+        }
+        if(dirtyBits != null) {
+            if(index < 0)
+                markAllDirty();
+            else
+                markDirty(index, length);
+        }
+    }
+
+    /**
+     * Starts or stops remembering which addresses have been written since
+     * the last drainDirty. Tracking starts with nothing dirty.
+     */
+    public void setDirtyTracking(boolean on) {
+        dirtyBits = on ? new long[(size + 63) >> 6] : null;
+        dirtyList = on ? new int[16] : null;
+        dirtyCount = 0;
+        allDirty = false;
+    }
+
+    public boolean isDirtyTracking() {
+        return dirtyBits != null;
+    }
+
+    private void markDirty(int start, int length) {
+        if(allDirty)
+            return;
+        for(int i = start; i < start + length; i++) {
+            long bit = 1L << i;
+            if((dirtyBits[i >> 6] & bit) == 0) {
+                dirtyBits[i >> 6] |= bit;
+                if(dirtyCount == dirtyList.length)
+                    dirtyList = Arrays.copyOf(dirtyList, Math.min(2 * dirtyCount, size));
+                dirtyList[dirtyCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * Marks every address dirty, as after clear, without listing them
+     */
+    void markAllDirty() {
+        if(dirtyBits != null) {
+            allDirty = true;
+            dirtyCount = 0;
+        }
+    }
+
+    /**
+     * Passes each address written since the last drain to action once, in
+     * the order they were first written, and forgets them. Unless the
+     * memory was cleared in between, this takes time in proportion to the
+     * number of addresses, not to the size of the memory.
+     * @return the number of addresses passed to action
+     */
+    public int drainDirty(IntConsumer action) {
+        if(dirtyBits == null)
+            return 0;
+        if(allDirty) {
+            Arrays.fill(dirtyBits, 0);
+            allDirty = false;
+            dirtyCount = 0;
+            for(int i = 0; i < size; i++) {
+                action.accept(i);
+            }
+            return size;
+        }
+        int count = dirtyCount;
+        for(int n = 0; n < count; n++) {
+            int i = dirtyList[n];
+            dirtyBits[i >> 6] &= ~(1L << i);
+            action.accept(i);
+        }
+        dirtyCount = 0;
+        return count;
+    }
+
+    ArrayIndexOutOfBoundsException outOfBounds(int index) {
+        return new ArrayIndexOutOfBoundsException(
+                "Index " + index + " out of bounds for length " + size);
     }
 
+    private int[] writablePage(int page) {
+        if(pages[page] == null) {
+            pages[page] = new int[Math.min(PAGE_SIZE, size - (page << PAGE_SHIFT))];
+            owned[page] = true;
+        } else if(!owned[page]) {
+            pages[page] = pages[page].clone();
+            owned[page] = true;
+        }
+        return pages[page];
+    }
+
+    /**
+     * @return how many pages this memory has allocated and no longer
+     * shares with any fork
+     */
+    int getOwnedPages() {
+        int count = 0;
+        for(int p = 0; p < pages.length; p++) {
+            if(pages[p] != null && owned[p]) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return how many pages have been allocated, shared or not
+     */
+    int getAllocatedPages() {
+        int count = 0;
+        for(int[] page : pages) {
+            if(page != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Rotates a block of memory right in place, so the value at start + i
+     * moves to start + (i + distance) % length, and records the block as
+     * one change
+     * @param start the first address of the block
+     * @param length the number of addresses in the block
+     * @param distance how far to rotate, from 0 to length - 1
+     */
+    public void rotate(int start, int length, int distance) {
+        Objects.checkFromIndexSize(start, length, size);
+        int end = start + length - 1;
+        if(length > 0) {
+            for(int p = start >> PAGE_SHIFT; p <= end >> PAGE_SHIFT; p++) {
+                writablePage(p);
+            }
+        }
+        if(undoLog != null)
+            undoLog.rotate(start, length, distance);
+        reverse(start, end);
+        reverse(start, start + distance - 1);
+        reverse(start + distance, end);
+        if(distance > 0)
+            modified();
+        changed(start, length);
+    }
+
+    // the pages in the range must already be writable
+    private void reverse(int low, int high) {
+        for(; low < high; low++, high--) {
+            int[] lowPage = pages[low >> PAGE_SHIFT], highPage = pages[high >> PAGE_SHIFT];
+            int temp = lowPage[low & PAGE_MASK];
+            lowPage[low & PAGE_MASK] = highPage[high & PAGE_MASK];
+            highPage[high & PAGE_MASK] = temp;
+        }
+    }
+
+    /**
+     * @return a copy of the whole memory as one array
+     */
     protected int[] getData() {
-        return this.data;
+        int[] data = new int[size];
+        for(int p = 0; p < pages.length; p++) {
+            if(pages[p] != null)
+                System.arraycopy(pages[p], 0, data, p << PAGE_SHIFT, pages[p].length);
+        }
+        return data;
+    }
+
+    /**
+     * @return the same hash as Arrays.hashCode(getData()), without copying
+     * the memory or reading pages that were never written
+     */
+    public int hash() {
+        int hash = 1;
+        for(int p = 0; p < pages.length; p++) {
+            int[] page = pages[p];
+            if(page == null) {
+                // each zero word just multiplies the hash by 31
+                int length = Math.min(PAGE_SIZE, size - (p << PAGE_SHIFT));
+                hash *= length == PAGE_SIZE ? ZERO_PAGE_FACTOR : power31(length);
+                continue;
+            }
+            for(int value : page) {
+                hash = 31 * hash + value;
+            }
+        }
+        return hash;
     }
 
+    private static int power31(int exponent) {
+        int result = 1;
+        for(int i = 0; i < exponent; i++) {
+            result *= 31;
+        }
+        return result;
+    }
+
+    /**
+     * Sets every word to 0, giving back all the pages
+     */
     public void clear() {
-        for(int i=0;i<data.length;i++)
-            data[i] = 0;
-        this.changedIndex = -1;
+        Arrays.fill(pages, null);
+        modified();
+        changed(-1, 0);
+    }
+
+    /**
+     * Gives back the storage of this memory when the machine using it is
+     * done with it; the memory must not be used afterwards
+     */
+    public void release() {
+        clear();
     }
 }
@@ -0,0 +1,91 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.function.IntFunction;
+
+/**
+ * Compares the on-heap and off-heap Memory backends with many large
+ * machines alive at once. A pool of machines, each with every word of its
+ * memory written, is kept full while machines are repeatedly thrown away
+ * and replaced by new ones that load and run a program. For each backend
+ * the steps per second, the garbage collections and the time they took,
+ * and the heap in use at the end are printed.
+ *
+ *   java pippin.MemoryBenchmark [machines [words [rounds [program.pexe]]]]
+ */
+public class MemoryBenchmark {
+    private final int machines, words, rounds;
+    private final File program;
+
+    public MemoryBenchmark(int machines, int words, int rounds, File program) {
+        this.machines = machines;
+        this.words = words;
+        this.rounds = rounds;
+        this.program = program;
+    }
+
+    private MachineModel create(IntFunction<Memory> backend) throws FileNotFoundException {
+        MachineModel model = new MachineModel(backend.apply(words));
+        for(int i = 0; i < words; i++) {
+            model.setData(i, i);
+        }
+        Code code = new Code();
+        Loader.loadOrThrow(model, code, program);
+        model.setCode(code);
+        model.setEngine(MachineModel.Engine.THREADED);
+        return model;
+    }
+
+    private static long[] gcTotals() {
+        long count = 0, millis = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, millis};
+    }
+
+    private void measure(String name, IntFunction<Memory> backend) throws FileNotFoundException {
+        System.gc();
+        MachineModel[] pool = new MachineModel[machines];
+        for(int i = 0; i < machines; i++) {
+            pool[i] = create(backend);
+        }
+        long[] gcBefore = gcTotals();
+        long steps = 0;
+        long start = System.nanoTime();
+        for(int round = 0; round < rounds; round++) {
+            for(int i = 0; i < machines; i++) {
+                pool[i].release();
+                pool[i] = create(backend);
+                steps += pool[i].run(Long.MAX_VALUE).getSteps();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long[] gcAfter = gcTotals();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%s: %,.0f steps/s, %.2f s, %d collections taking %d ms, %,d KB heap in use%n",
+                name, steps / seconds, seconds, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1],
+                (runtime.totalMemory() - runtime.freeMemory()) / 1024);
+        for(MachineModel model : pool) {
+            model.release();
+        }
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        int machines = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int words = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 16;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        File program = new File(args.length > 3 ? args[3] : "assembly/merge.pexe");
+        MemoryBenchmark bench = new MemoryBenchmark(machines, words, rounds, program);
+        System.out.printf("%d machines of %,d words, %d rounds of %s%n", machines, words, rounds, program);
+        // once each to warm up, then measured
+        for(int pass = 0; pass < 2; pass++) {
+            bench.measure("heap", Memory::new);
+            bench.measure("off-heap", OffHeapMemory::new);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package pippin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class MemoryTester {
+
+    int pages = 4;
+    Memory memory = new Memory(pages * Memory.PAGE_SIZE);
+
+    @Before
+    public void setup() {
+        for (int i = 0; i < memory.size(); i++) {
+            memory.setData(i, i);
+        }
+    }
+
+    private MachineModel load(String name) throws FileNotFoundException {
+        MachineModel machine = new MachineModel();
+        Code code = new Code();
+        Loader.load(machine, code, new File("./assembly/" + name + ".pexe"));
+        machine.setCode(code);
+        return machine;
+    }
+
+    @Test
+    public void testForkSharesPages() {
+        Memory fork = memory.fork();
+        assertEquals(0, memory.getOwnedPages());
+        assertEquals(0, fork.getOwnedPages());
+        assertArrayEquals(memory.getData(), fork.getData());
+        fork.setData(1, -1);
+        assertEquals(1, fork.getOwnedPages());
+        assertEquals(1, memory.getData(1));
+        memory.setData(1, -2);
+        memory.setData(2, -2);
+        assertEquals(1, memory.getOwnedPages());
+        assertEquals(-1, fork.getData(1));
+        assertEquals(2, fork.getData(2));
+    }
+
+    @Test
+    public void testRotateCopiesSharedPages() {
+        Memory fork = memory.fork();
+        // a block across the first two pages
+        fork.rotate(Memory.PAGE_SIZE - 2, 4, 1);
+        assertEquals(2, fork.getOwnedPages());
+        assertEquals(Memory.PAGE_SIZE + 1, fork.getData(Memory.PAGE_SIZE - 2));
+        assertEquals(Memory.PAGE_SIZE - 2, fork.getData(Memory.PAGE_SIZE - 1));
+        assertEquals(Memory.PAGE_SIZE - 1, memory.getData(Memory.PAGE_SIZE - 1));
+        assertEquals(Memory.PAGE_SIZE - 2, fork.getChangedIndex());
+        assertEquals(4, fork.getChangedLength());
+    }
+
+    @Test
+    public void testClearLeavesForksAlone() {
+        Memory fork = memory.fork();
+        memory.clear();
+        assertEquals(0, memory.getAllocatedPages());
+        assertEquals(0, memory.getData(5));
+        assertEquals(5, fork.getData(5));
+        assertEquals(pages, fork.getAllocatedPages());
+    }
+
+    @Test
+    public void testPagesAllocatedOnFirstWrite() {
+        Memory sparse = new Memory(Memory.MAX_SIZE);
+        assertEquals(0, sparse.getData(Memory.MAX_SIZE - 1));
+        assertEquals(0, sparse.getAllocatedPages());
+        sparse.setData(10000000, 7);
+        sparse.setData(10000001, 8);
+        assertEquals(1, sparse.getAllocatedPages());
+        assertEquals(8, sparse.getData(10000001));
+        assertEquals(0, sparse.getData(10000002));
+    }
+
+    @Test
+    public void testHashMatchesArrays() {
+        // a last page that is only partly used, written and not
+        Memory sparse = new Memory(3 * Memory.PAGE_SIZE + 5);
+        assertEquals(Arrays.hashCode(sparse.getData()), sparse.hash());
+        sparse.setData(3, -1);
+        sparse.setData(3 * Memory.PAGE_SIZE + 4, 9);
+        assertEquals(Arrays.hashCode(sparse.getData()), sparse.hash());
+        assertEquals(Arrays.hashCode(memory.getData()), memory.hash());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testSizeMustBePositive() {
+        new Memory(0);
+    }
+
+    @Test
+    public void testLargeMachine() throws FileNotFoundException {
+        MachineModel large = new MachineModel(1 << 24);
+        Code code = new Code();
+        Loader.load(large, code, new File("./assembly/qsort.pexe"));
+        large.setCode(code);
+        large.setEngine(MachineModel.Engine.TIERED);
+        MachineModel small = load("qsort");
+        assertEquals(small.run(Long.MAX_VALUE).toString(), large.run(Long.MAX_VALUE).toString());
+        assertEquals(1, large.getMemory().getAllocatedPages());
+        large.setData((1 << 24) - 1, 1);
+        assertEquals(2, large.getMemory().getAllocatedPages());
+    }
+
+    @Test(expected=ArrayIndexOutOfBoundsException.class)
+    public void testOutOfRange() {
+        memory.getData(-1);
+    }
+
+    @Test
+    public void testForkedMachinesDiverge() throws FileNotFoundException {
+        MachineModel straight = load("qsort");
+        RunResult expected = straight.run(Long.MAX_VALUE);
+
+        MachineModel parent = load("qsort");
+        parent.setEngine(MachineModel.Engine.THREADED);
+        parent.run(5000);
+        MachineModel child = parent.fork();
+        assertEquals(MachineModel.Engine.THREADED, child.getEngine());
+        assertEquals(parent.getProgramCounter(), child.getProgramCounter());
+        for(int i = 0; i < Memory.DATA_SIZE; i++) {
+            child.setData(i, 0);
+        }
+        child.run(Long.MAX_VALUE);
+
+        RunResult rest = parent.run(Long.MAX_VALUE);
+        assertEquals(expected.getSteps(), 5000 + rest.getSteps());
+        assertArrayEquals(straight.getData(), parent.getData());
+    }
+
+    @Test
+    public void testSnapshotRestore() throws FileNotFoundException {
+        MachineModel machine = load("factorial8");
+        machine.run(10);
+        int[] data = machine.getData();
+        MachineModel.Snapshot snapshot = machine.snapshot();
+        RunResult first = machine.run(Long.MAX_VALUE);
+        assertEquals(data[1], snapshot.getData(1));
+
+        // a snapshot can be restored any number of times
+        for(int i = 0; i < 2; i++) {
+            machine.restore(snapshot);
+            assertEquals(snapshot.getProgramCounter(), machine.getProgramCounter());
+            assertArrayEquals(data, machine.getData());
+            assertEquals(first.toString(), machine.run(Long.MAX_VALUE).toString());
+        }
+    }
+
+    @Test
+    public void testCheckpointRoundTrip() throws IOException {
+        Path file = Files.createTempFile("pippin", ".ckpt");
+        try {
+            MachineModel machine = load("qsort");
+            machine.run(4000);
+            Checkpoint.write(machine.snapshot(), 4000, file);
+            MachineModel resumed = new MachineModel();
+            assertEquals(4000, Checkpoint.restore(file, resumed));
+            assertEquals(machine.getProgramCounter(), resumed.getProgramCounter());
+            assertArrayEquals(machine.getData(), resumed.getData());
+            assertEquals(machine.run(Long.MAX_VALUE).toString(), resumed.run(Long.MAX_VALUE).toString());
+            assertArrayEquals(machine.getData(), resumed.getData());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCheckpointWriterSavesFinalState() throws IOException {
+        Path file = Files.createTempFile("pippin", ".ckpt");
+        try (CheckpointWriter writer = new CheckpointWriter(file)) {
+            MachineModel machine = load("merge");
+            RunResult result = writer.run(machine, Long.MAX_VALUE, 1000, 0);
+            assertEquals(RunResult.Status.HALTED, result.getStatus());
+            assertTrue(writer.getWritten() >= 1);
+            MachineModel resumed = new MachineModel();
+            assertEquals(result.getSteps(), Checkpoint.restore(file, resumed));
+            assertFalse(resumed.isRunning());
+            assertArrayEquals(machine.getData(), resumed.getData());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testRestoreRejectsOtherFiles() throws IOException {
+        Checkpoint.restore(Paths.get("assembly", "qsort.pexe"), new MachineModel());
+    }
+
+    @Test
+    public void testOffHeapMatchesHeap() {
+        Memory offHeap = new OffHeapMemory(memory.size());
+        for (int i = 0; i < memory.size(); i++) {
+            offHeap.setData(i, i);
+        }
+        assertEquals(memory.size() - 1, offHeap.getChangedIndex());
+        memory.rotate(10, 300, 7);
+        offHeap.rotate(10, 300, 7);
+        assertArrayEquals(memory.getData(), offHeap.getData());
+        assertEquals(memory.hash(), offHeap.hash());
+        assertEquals(300, offHeap.getChangedLength());
+        Memory fork = offHeap.fork();
+        fork.setData(3, -3);
+        assertEquals(3, offHeap.getData(3));
+        offHeap.clear();
+        assertEquals(0, offHeap.getData(20));
+        assertEquals(-1, offHeap.getChangedIndex());
+        assertEquals(20, fork.getData(27));
+    }
+
+    @Test
+    public void testOffHeapMachine() throws FileNotFoundException {
+        MachineModel machine = new MachineModel(new OffHeapMemory(Memory.DATA_SIZE));
+        Code code = new Code();
+        Loader.load(machine, code, new File("./assembly/merge.pexe"));
+        machine.setCode(code);
+        machine.setEngine(MachineModel.Engine.TIERED);
+        machine.setRecording(1 << 16);
+        int[] before = machine.getData();
+        MachineModel heap = load("merge");
+        assertEquals(heap.run(Long.MAX_VALUE).toString(), machine.run(Long.MAX_VALUE).toString());
+        assertArrayEquals(heap.getData(), machine.getData());
+        machine.reverseContinue(Long.MAX_VALUE, null);
+        assertArrayEquals(before, machine.getData());
+        machine.release();
+    }
+
+    @Test(expected=ArrayIndexOutOfBoundsException.class)
+    public void testOffHeapOutOfRange() {
+        new OffHeapMemory(10).setData(10, 1);
+    }
+
+    private int[] drain(Memory memory) {
+        IntStream.Builder cells = IntStream.builder();
+        memory.drainDirty(cells);
+        return cells.build().toArray();
+    }
+
+    @Test
+    public void testDirtyTracking() {
+        for(Memory tracked : new Memory[] {memory, new OffHeapMemory(memory.size())}) {
+            assertArrayEquals(new int[0], drain(tracked));
+            tracked.setDirtyTracking(true);
+            tracked.setData(700, 1);
+            tracked.setData(3, 1);
+            tracked.setData(700, 2);
+            tracked.rotate(2, 3, 1);
+            assertArrayEquals(new int[] {700, 3, 2, 4}, drain(tracked));
+            assertArrayEquals(new int[0], drain(tracked));
+            tracked.clear();
+            assertEquals(tracked.size(), drain(tracked).length);
+            tracked.setData(5, 5);
+            assertArrayEquals(new int[] {5}, drain(tracked));
+        }
+    }
+
+    @Test
+    public void testRestoreMarksAllDirty() throws FileNotFoundException {
+        MachineModel machine = load("factorial8");
+        MachineModel.Snapshot snapshot = machine.snapshot();
+        machine.setDirtyTracking(true);
+        machine.run(Long.MAX_VALUE);
+        assertEquals(2, machine.drainDirty(i -> { }));
+        machine.restore(snapshot);
+        assertEquals(Memory.DATA_SIZE, machine.drainDirty(i -> { }));
+    }
+}
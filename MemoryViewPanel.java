@@ -2,35 +2,115 @@ package pippin;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.GridLayout;
+import java.awt.Component;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.util.BitSet;
 import java.util.Observable;
 import java.util.Observer;
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextField;
+import javax.swing.JTable;
 import javax.swing.border.Border;
 import javax.swing.border.TitledBorder;
-import java.util.Observer;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
 
+/**
+ * Shows the data addresses from lower up to upper in a table whose cells
+ * are read from a window of MachineView that follows the rows in view.
+ * The window is all that is copied from the machine, and an update only
+ * repaints the rows written since the last one, so the cost of a step
+ * does not grow with the memory.
+ * Every address written since the last update is highlighted, which
+ * while the engine thread runs is everything that changed in a frame.
+ */
 public class MemoryViewPanel implements Observer {
+    // above this many written cells, one repaint of the table is cheaper
+    private static final int MAX_ROW_UPDATES = 64;
+    // rows kept in the window above and below the ones in view
+    private static final int MARGIN = 16;
+    private static final String[] COLUMNS = {"Address", "Decimal", "Hex"};
+
     private MachineView machineView;
+    private MachineView.DataWindow window;
     private JScrollPane scroller;
-    private JTextField[] dataDecimal = new JTextField[Memory.DATA_SIZE];
-    private JTextField[] dataHex = new JTextField[Memory.DATA_SIZE];
-    private int lower, upper, previousColor = -1;
+    private JTable table;
+    private MemoryTableModel tableModel = new MemoryTableModel();
+    private int lower, upper;
+    private BitSet highlighted = new BitSet();
+    private boolean filled = false;
+
     public MemoryViewPanel(MachineView machineView, int lower, int upper) {
         this.machineView = machineView;
         this.lower = lower;
         this.upper = upper;
+        window = machineView.openWindow();
         machineView.addObserver(this);
     }
 
+    private class MemoryTableModel extends AbstractTableModel {
+        /**
+         * Generated by the serialver tool
+         */
+        private static final long serialVersionUID = -8914860246240397701L;
+
+        @Override
+        public int getRowCount() {
+            return upper - lower;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            int i = lower + row;
+            if(column == 0)
+                return i + ": ";
+            if(!filled || !window.contains(i))
+                return "";
+            int value = window.getData(i);
+            return column == 1 ? Integer.toString(value) : Integer.toHexString(value);
+        }
+
+        // repaints the rows of the addresses from start to start + length
+        // that fall in this panel
+        void addressesUpdated(int start, int length) {
+            int first = Math.max(start, lower), last = Math.min(start + length, upper) - 1;
+            if(first <= last)
+                fireTableRowsUpdated(first - lower, last - lower);
+        }
+    }
+
+    // paints the highlighted addresses yellow
+    private class ChangedRenderer extends DefaultTableCellRenderer {
+        /**
+         * Generated by the serialver tool
+         */
+        private static final long serialVersionUID = 8848012724455414145L;
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value,
+                boolean isSelected, boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, false, false, row, column);
+            int i = lower + row;
+            setBackground(highlighted.get(i) ? Color.YELLOW : Color.WHITE);
+            setHorizontalAlignment(column == 0 ? JLabel.RIGHT : JLabel.LEFT);
+            return this;
+        }
+    }
+
     public JComponent createMemoryDisplay() {
         JPanel returnPanel = new JPanel();
         returnPanel.setLayout(new BorderLayout());
@@ -39,64 +119,70 @@ public class MemoryViewPanel implements Observer {
                 "Data Memory View [" + lower + "-" + upper + "]",
                 TitledBorder.CENTER, TitledBorder.DEFAULT_POSITION);
         returnPanel.setBorder(border);
-        JPanel panel = new JPanel();
-        panel.setLayout(new BorderLayout());
-        JPanel numPanel = new JPanel();
-        JPanel decimalPanel = new JPanel();
-        JPanel hexPanel = new JPanel();
-        numPanel.setLayout(new GridLayout(0,1));
-        decimalPanel.setLayout(new GridLayout(0,1));
-        hexPanel.setLayout(new GridLayout(0,1));
-        panel.add(numPanel, BorderLayout.LINE_START);
-        panel.add(decimalPanel, BorderLayout.CENTER);
-        panel.add(hexPanel, BorderLayout.LINE_END);
-        for(int i = lower; i < upper; i++) {
-            numPanel.add(new JLabel(i+": ", JLabel.RIGHT));
-            dataDecimal[i] = new JTextField(10);
-            dataHex[i] = new JTextField(10);
-            decimalPanel.add(dataDecimal[i]);
-            hexPanel.add(dataHex[i]);
-        }
-        scroller = new JScrollPane(panel);
+        table = new JTable(tableModel);
+        table.setDefaultRenderer(Object.class, new ChangedRenderer());
+        table.setRowSelectionAllowed(false);
+        table.setFocusable(false);
+        table.getTableHeader().setReorderingAllowed(false);
+        scroller = new JScrollPane(table);
+        scroller.getViewport().addChangeListener(e -> followView());
         returnPanel.add(scroller);
         return returnPanel;
     }
+
+    // moves the window to the rows in view, before they are painted
+    private void followView() {
+        Rectangle view = scroller.getViewport().getViewRect();
+        int first = table.rowAtPoint(view.getLocation());
+        int last = table.rowAtPoint(new Point(view.x, view.y + view.height - 1));
+        if(first < 0)
+            return;
+        if(last < 0)
+            last = tableModel.getRowCount() - 1;
+        int start = lower + Math.max(0, first - MARGIN);
+        int end = lower + Math.min(tableModel.getRowCount(), last + 1 + MARGIN);
+        if(!window.contains(start) || !window.contains(end - 1))
+            machineView.moveWindow(window, start, end - start);
+    }
+
     @Override
     public void update(Observable arg0, Object arg1) {
-        for(int i = lower; i < upper; i++) {
-            dataDecimal[i].setText("" + machineView.getData(i));
-            dataHex[i].setText(Integer.toHexString(machineView.getData(i)));
+        if(arg1 != null) {
+            // a cleared or newly loaded memory starts with nothing highlighted
+            filled = !arg1.equals("Clear");
+            highlighted.clear();
+            tableModel.fireTableDataChanged();
+            return;
         }
-        if(arg1 != null && arg1.equals("Clear")) {
-            for(int i = lower; i < upper; i++) {
-                dataDecimal[i].setText("");
-                dataHex[i].setText("");
-            }
-            if(lower <= previousColor && previousColor < upper) {
-                System.out.println("\tagain" + previousColor);
-                dataDecimal[previousColor].setBackground(Color.WHITE);
-                dataHex[previousColor].setBackground(Color.WHITE);
-                previousColor = -1;
-            }
+        int[] dirty = machineView.getDirtyCells();
+        if(dirty.length == 0 && filled)
+            return;
+        // only the cells written since the last update, and the ones
+        // highlighted for the update before, need painting
+        BitSet previous = highlighted;
+        highlighted = new BitSet();
+        for(int i : dirty) {
+            if(i >= lower && i < upper)
+                highlighted.set(i);
+        }
+        boolean repaintAll = !filled
+            || previous.cardinality() + highlighted.cardinality() > MAX_ROW_UPDATES;
+        filled = true;
+        if(repaintAll) {
+            tableModel.fireTableDataChanged();
         } else {
-            if(previousColor  >= lower && previousColor < upper) {
-                dataDecimal[previousColor].setBackground(Color.WHITE);
-                dataHex[previousColor].setBackground(Color.WHITE);
-            }
-            previousColor = machineView.getChangedIndex();
-            if(previousColor  >= lower && previousColor < upper) {
-                dataDecimal[previousColor].setBackground(Color.YELLOW);
-                dataHex[previousColor].setBackground(Color.YELLOW);
+            previous.or(highlighted);
+            for(int i = previous.nextSetBit(0); i >= 0; i = previous.nextSetBit(i + 1)) {
+                tableModel.addressesUpdated(i, 1);
             }
         }
-        if(scroller != null && machineView != null) {
-            JScrollBar bar= scroller.getVerticalScrollBar();
-            if (machineView.getChangedIndex() >= lower &&
-                    machineView.getChangedIndex() < upper &&
-                    dataDecimal[machineView.getChangedIndex()] != null) {
-                Rectangle bounds = dataDecimal[machineView.getChangedIndex()].getBounds();
-                bar.setValue(Math.max(0, bounds.y - 15*bounds.height));
-                    }
+        int changed = machineView.getChangedIndex();
+        if(table != null && changed >= lower && changed < upper) {
+            Rectangle bounds = table.getCellRect(changed - lower, 0, true);
+            int y = Math.max(0, bounds.y - 15 * bounds.height);
+            Rectangle view = scroller.getViewport().getViewRect();
+            if(bounds.y < view.y || bounds.y + bounds.height > view.y + view.height)
+                scroller.getVerticalScrollBar().setValue(y);
         }
     }
 }
@@ -0,0 +1,149 @@
+package pippin;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters of every MachineModel in the JVM, published over JMX as
+ * pippin:type=Metrics by register. Machines add to them from run once
+ * per WATCHDOG_SLICE instructions and when the run ends, never per
+ * instruction, and every counter is a LongAdder, so machines on many
+ * threads each add to their own cell instead of fighting over one.
+ * Opcodes are counted by the table interpreter, which decodes every
+ * instruction anyway, and by machines that profile; the THREADED and
+ * TIERED engines never decode single instructions and leave them out.
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String OBJECT_NAME = "pippin:type=Metrics";
+    /**
+     * The counters every MachineModel adds to
+     */
+    public static final Metrics GLOBAL = new Metrics();
+    private static final long SAMPLE_NANOS = 1_000_000_000L;
+
+    private final LongAdder retired = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder[] opcodes = new LongAdder[InstructionMap.OPCODE_COUNT];
+    private final Map<String, LongAdder> traps = new ConcurrentHashMap<>();
+    private final long created = System.nanoTime();
+    // the last sample of retired, for getInstructionsPerSecond
+    private long sampleTime = created;
+    private long sampleRetired;
+    private double sampleRate;
+
+    Metrics() {
+        for(int op = 0; op < opcodes.length; op++) {
+            opcodes[op] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers GLOBAL with the platform MBean server, if it is not
+     * registered yet
+     */
+    public static void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name))
+                server.registerMBean(GLOBAL, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    void started() {
+        active.increment();
+    }
+
+    void stopped() {
+        active.decrement();
+    }
+
+    /**
+     * Adds a slice of a run
+     * @param steps the instructions executed
+     * @param written the memory writes they made
+     */
+    void executed(long steps, long written) {
+        retired.add(steps);
+        if(written != 0)
+            writes.add(written);
+    }
+
+    /**
+     * Adds counts per opcode and sets them back to 0
+     */
+    void executed(long[] counts) {
+        for(int op = 0; op < counts.length; op++) {
+            if(counts[op] != 0) {
+                opcodes[op].add(counts[op]);
+                counts[op] = 0;
+            }
+        }
+    }
+
+    void trapped(RuntimeException e) {
+        traps.computeIfAbsent(e.getClass().getName(), k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public long getInstructionsRetired() {
+        return retired.sum();
+    }
+
+    @Override
+    public synchronized double getInstructionsPerSecond() {
+        long now = System.nanoTime();
+        if(now - sampleTime >= SAMPLE_NANOS) {
+            long sum = retired.sum();
+            sampleRate = (sum - sampleRetired) * 1e9 / (now - sampleTime);
+            sampleTime = now;
+            sampleRetired = sum;
+        }
+        return sampleRate;
+    }
+
+    @Override
+    public double getAverageInstructionsPerSecond() {
+        long elapsed = System.nanoTime() - created;
+        return elapsed == 0 ? 0.0 : retired.sum() * 1e9 / elapsed;
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for(Map.Entry<Integer, String> entry : InstructionMap.mnemonics.entrySet()) {
+            long count = opcodes[entry.getKey()].sum();
+            if(count != 0)
+                counts.put(entry.getValue(), count);
+        }
+        return counts;
+    }
+
+    @Override
+    public long getMemoryWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getTraps() {
+        Map<String, Long> counts = new TreeMap<>();
+        for(Map.Entry<String, LongAdder> entry : traps.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public int getActiveMachines() {
+        return active.intValue();
+    }
+}
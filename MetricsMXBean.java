@@ -0,0 +1,42 @@
+package pippin;
+
+import java.util.Map;
+
+/**
+ * The attributes of the pippin:type=Metrics MBean, see Metrics
+ */
+public interface MetricsMXBean {
+    /**
+     * @return the instructions executed by run on every machine
+     */
+    long getInstructionsRetired();
+
+    /**
+     * @return instructions per second since the previous sample, taken at
+     * most once a second when this attribute is read
+     */
+    double getInstructionsPerSecond();
+
+    /**
+     * @return instructions per second since the metrics were created
+     */
+    double getAverageInstructionsPerSecond();
+
+    /**
+     * @return instructions executed by mnemonic, for machines on the
+     * INTERPRETER engine or that profile
+     */
+    Map<String, Long> getOpcodeCounts();
+
+    long getMemoryWrites();
+
+    /**
+     * @return runs that ended in a trap, by exception class
+     */
+    Map<String, Long> getTraps();
+
+    /**
+     * @return the machines inside run right now
+     */
+    int getActiveMachines();
+}
@@ -0,0 +1,137 @@
+package pippin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Objects;
+
+/**
+ * A Memory whose words live outside the Java heap, in one direct buffer,
+ * so that many large machines do not add to the work of the garbage
+ * collector. It reads, writes, rotates, clears and records undo
+ * information exactly like Memory, but it is not paged: the whole buffer
+ * is allocated up front and fork copies it instead of sharing it.
+ *
+ * The buffer belongs to the machine; release drops it once the machine is
+ * done, after which the memory cannot be used. The native memory itself
+ * is returned when the buffer is collected.
+ */
+public class OffHeapMemory extends Memory {
+    private IntBuffer words;
+
+    /**
+     * @param size the number of words, from 1 to MAX_SIZE
+     */
+    public OffHeapMemory(int size) {
+        super(size, false);
+        this.words = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private OffHeapMemory(OffHeapMemory parent) {
+        this(parent.size());
+        words.put(0, parent.words, 0, parent.size());
+        changed(parent.getChangedIndex(), parent.getChangedLength());
+    }
+
+    /**
+     * @return a copy of this memory; unlike Memory.fork the words are
+     * copied at once
+     */
+    @Override
+    public Memory fork() {
+        return new OffHeapMemory(this);
+    }
+
+    @Override
+    public int getData(int index) {
+        if(index < 0 || index >= size())
+            throw outOfBounds(index);
+        Profile profile = getProfile();
+        if(profile != null)
+            profile.read(index);
+        return words.get(index);
+    }
+
+    @Override
+    int peek(int index) {
+        return words.get(index);
+    }
+
+    @Override
+    public void setData(int index, int value) {
+        if(index < 0 || index >= size())
+            throw outOfBounds(index);
+        changed(index, 1);
+        int old = words.get(index);
+        if(old != value)
+            modified();
+        UndoLog undoLog = getUndoLog();
+        if(undoLog != null)
+            undoLog.write(index, old);
+        words.put(index, value);
+    }
+
+    @Override
+    public void rotate(int start, int length, int distance) {
+        Objects.checkFromIndexSize(start, length, size());
+        UndoLog undoLog = getUndoLog();
+        if(undoLog != null)
+            undoLog.rotate(start, length, distance);
+        int end = start + length - 1;
+        reverse(start, end);
+        reverse(start, start + distance - 1);
+        reverse(start + distance, end);
+        if(distance > 0)
+            modified();
+        changed(start, length);
+    }
+
+    private void reverse(int low, int high) {
+        for(; low < high; low++, high--) {
+            int temp = words.get(low);
+            words.put(low, words.get(high));
+            words.put(high, temp);
+        }
+    }
+
+    @Override
+    protected int[] getData() {
+        int[] data = new int[size()];
+        words.get(0, data);
+        return data;
+    }
+
+    @Override
+    public int hash() {
+        int hash = 1;
+        for(int i = 0; i < size(); i++) {
+            hash = 31 * hash + words.get(i);
+        }
+        return hash;
+    }
+
+    @Override
+    int getOwnedPages() {
+        return 0;
+    }
+
+    @Override
+    int getAllocatedPages() {
+        return 0;
+    }
+
+    @Override
+    public void clear() {
+        int[] zeros = new int[Math.min(size(), PAGE_SIZE)];
+        for(int i = 0; i < size(); i += zeros.length) {
+            words.put(i, zeros, 0, Math.min(zeros.length, size() - i));
+        }
+        modified();
+        changed(-1, 0);
+    }
+
+    @Override
+    public void release() {
+        words = null;
+    }
+}
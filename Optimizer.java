@@ -0,0 +1,704 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rewrites a loaded program into one that leaves the same data memory
+ * behind in fewer steps. The lines form a control flow graph, over which
+ * these passes are repeated until none of them finds anything more:
+ *
+ *   constant propagation, from the loaded data and an unknown accumulator,
+ *   which turns operands it knows into immediates, resolves indirect
+ *   addresses and jumps, settles JMPZs and drops unreachable lines;
+ *
+ *   redundant load elimination, which drops a LOD of a value the
+ *   accumulator already holds and a STO of a value the address already
+ *   holds, known either as a constant or because nothing has changed
+ *   since the accumulator was loaded from or stored to the address;
+ *
+ *   dead store elimination, which drops a STO that is overwritten before
+ *   anything can read it and an instruction whose accumulator is never used;
+ *
+ *   jump threading, which points jumps past NOPs and other jumps, turns a
+ *   jump to HALT into HALT and drops jumps to where execution goes anyway.
+ *
+ * Dropped lines become NOP. When no indirect jump is left, whose target
+ * could be any line, the NOPs are then removed and jump targets renumbered;
+ * otherwise every line keeps its number, since the data may hold it.
+ *
+ * A program that halts or fails ends with the same data memory and
+ * accumulator and fails with the same kind of exception; only the step
+ * count and the final program counter change. Anything that might fail
+ * counts as reading all of memory and the accumulator, so nothing before
+ * it is dropped that a failure would have left behind.
+ */
+public class Optimizer {
+    private static final int MAX_ROUNDS = 32;
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final long FAILS = Long.MAX_VALUE;
+    private static final long NOP = Code.encode(0x0, 0, 0);
+    // the indirection levels each opcode accepts, as bit masks
+    private static final int[] LEVELS = new int[InstructionMap.OPCODE_COUNT];
+    static {
+        int[] ops =    {0x0, 0x1, 0x2, 0x3, 0x4, 0x5, 0x6, 0x7, 0x8, 0x9, 0xA, 0xB, 0xC, 0xF, 0x14};
+        int[] levels = {0b1, 0b111, 0b110, 0b111, 0b111, 0b111, 0b111, 0b11, 0b1, 0b10, 0b10, 0b11, 0b11,
+            -1, 0b10};
+        for(int i = 0; i < ops.length; i++) {
+            LEVELS[ops[i]] = levels[i];
+        }
+    }
+
+    private final long[] words;
+    private final Memory memory;
+    private final int linesBefore;
+    private boolean compacted;
+    private int rounds;
+    // the addresses named directly by the current lines, and their slots
+    private int[] addresses;
+    private Map<Integer, Integer> slots;
+
+    /**
+     * What is known on entry to a line: the accumulator and tracked
+     * addresses that hold a known value, and the tracked addresses that
+     * hold the same value as the accumulator
+     */
+    private static class Facts {
+        boolean accKnown;
+        int acc;
+        final boolean[] known;
+        final int[] value;
+        final BitSet accEquals;
+
+        Facts(int slots) {
+            known = new boolean[slots];
+            value = new int[slots];
+            accEquals = new BitSet(slots);
+        }
+
+        Facts(Facts other) {
+            accKnown = other.accKnown;
+            acc = other.acc;
+            known = other.known.clone();
+            value = other.value.clone();
+            accEquals = (BitSet)other.accEquals.clone();
+        }
+
+        /**
+         * Keeps only what other also knows
+         * @return true if anything was forgotten
+         */
+        boolean meet(Facts other) {
+            boolean changed = false;
+            if(accKnown && (!other.accKnown || acc != other.acc)) {
+                accKnown = false;
+                changed = true;
+            }
+            for(int s = 0; s < known.length; s++) {
+                if(known[s] && (!other.known[s] || value[s] != other.value[s])) {
+                    known[s] = false;
+                    changed = true;
+                }
+            }
+            int before = accEquals.cardinality();
+            accEquals.and(other.accEquals);
+            return changed || accEquals.cardinality() != before;
+        }
+
+        void setAcc(long result) {
+            accKnown = result != UNKNOWN;
+            acc = (int)result;
+            accEquals.clear();
+        }
+    }
+
+    /**
+     * @param code the program
+     * @param memory the data memory as loaded with the program, which is
+     * only read
+     */
+    public Optimizer(Code code, Memory memory) {
+        this.words = new long[code.size()];
+        for(int pc = 0; pc < words.length; pc++) {
+            words[pc] = code.getWord(pc);
+        }
+        this.memory = memory;
+        this.linesBefore = countLines(words);
+    }
+
+    /**
+     * Runs the passes and builds the new program
+     * @return the optimized code
+     */
+    public Code optimize() {
+        rounds = 0;
+        boolean changed = true;
+        while(changed && rounds < MAX_ROUNDS) {
+            rounds++;
+            track();
+            changed = propagate();
+            track();
+            changed |= removeDead();
+            changed |= threadJumps();
+        }
+        compacted = !hasIndirectJump();
+        long[] result = compacted ? compact() : words.clone();
+        Code code = new Code();
+        code.setCode(result, result.length);
+        return code;
+    }
+
+    /**
+     * @return the lines other than NOP before optimizing
+     */
+    public int getLinesBefore() {
+        return this.linesBefore;
+    }
+
+    /**
+     * @return the lines other than NOP after optimizing
+     */
+    public int getLinesAfter() {
+        return countLines(words);
+    }
+
+    /**
+     * @return true if the NOPs were removed, false if an indirect jump
+     * made every line keep its number
+     */
+    public boolean isCompacted() {
+        return this.compacted;
+    }
+
+    /**
+     * @return how many times the passes were run
+     */
+    public int getRounds() {
+        return this.rounds;
+    }
+
+    private static int countLines(long[] words) {
+        int lines = 0;
+        for(long word : words) {
+            if(word != NOP) lines++;
+        }
+        return lines;
+    }
+
+    private static boolean legal(int op, int level) {
+        return op >= 0 && op < LEVELS.length && level >= 0 && level < 32
+            && (LEVELS[op] & 1 << level) != 0;
+    }
+
+    private boolean inBounds(long address) {
+        return address >= 0 && address < memory.size();
+    }
+
+    private void track() {
+        slots = new HashMap<>();
+        for(long word : words) {
+            int op = Code.op(word), arg = Code.arg(word);
+            if(Code.indirectionLevel(word) == 0 || !legal(op, Code.indirectionLevel(word)))
+                continue;
+            for(int i = 0; i < (op == 0x14 ? 3 : 1); i++) {
+                if(inBounds((long)arg + i))
+                    slots.putIfAbsent(arg + i, slots.size());
+            }
+        }
+        addresses = new int[slots.size()];
+        for(Map.Entry<Integer, Integer> entry : slots.entrySet()) {
+            addresses[entry.getValue()] = entry.getKey();
+        }
+    }
+
+    private int slot(long address) {
+        Integer slot = slots.get((int)address);
+        return slot == null ? -1 : slot;
+    }
+
+    private long read(Facts facts, long address) {
+        int s = slot(address);
+        return s >= 0 && facts.known[s] ? facts.value[s] : UNKNOWN;
+    }
+
+    /**
+     * @return the address a level 1 or 2 operand names, UNKNOWN if the
+     * facts do not say, or FAILS if reaching it must fail
+     */
+    private long address(Facts facts, int arg, int level) {
+        if(!inBounds(arg))
+            return FAILS;
+        if(level == 1)
+            return arg;
+        long pointer = read(facts, arg);
+        if(pointer == UNKNOWN)
+            return UNKNOWN;
+        return inBounds(pointer) ? pointer : FAILS;
+    }
+
+    /**
+     * @return the value of an operand, UNKNOWN, or FAILS
+     */
+    private long operand(Facts facts, int arg, int level) {
+        if(level == 0)
+            return arg;
+        long address = address(facts, arg, level);
+        return address == UNKNOWN || address == FAILS ? address : read(facts, address);
+    }
+
+    /**
+     * @param facts what is known on entry, or null for nothing
+     * @return true unless the line is sure not to throw
+     */
+    private boolean mayFail(long word, Facts facts) {
+        int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+        if(!legal(op, level) || op == 0x14)
+            return true;
+        if(op == 0xF || op == 0x0 || level == 0 && op != 0x6)
+            return false;
+        if(level > 0) {
+            long address = facts == null ? (level == 1 && inBounds(arg) ? arg : UNKNOWN)
+                : address(facts, arg, level);
+            if(address == UNKNOWN || address == FAILS)
+                return true;
+        }
+        if(op == 0x6) {
+            if(level > 0 && arg == 0)
+                return true;
+            if(level == 2 && read(facts, arg) == 0)
+                return true;
+            long divisor = facts == null ? (level == 0 ? arg : UNKNOWN) : operand(facts, arg, level);
+            return divisor == UNKNOWN || divisor == 0;
+        }
+        return false;
+    }
+
+    /**
+     * @return the facts after an instruction, or null if it always fails;
+     * for a JMPZ these are the facts when it does not jump
+     */
+    private Facts after(long word, Facts in) {
+        int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+        if(!legal(op, level))
+            return null;
+        Facts out = new Facts(in);
+        long value = op == 0x2 || op == 0x14 || op == 0xF || op == 0x0 ? 0 : operand(in, arg, level);
+        if(value == FAILS)
+            return null;
+        switch(op) {
+            case 0x1: //LOD
+                out.setAcc(value);
+                long source = level == 0 ? UNKNOWN : address(in, arg, level);
+                if(source != UNKNOWN && slot(source) >= 0)
+                    out.accEquals.set(slot(source));
+                break;
+            case 0x2: { //STO
+                long address = address(in, arg, level);
+                if(address == FAILS)
+                    return null;
+                if(address != UNKNOWN) {
+                    int s = slot(address);
+                    if(s >= 0) {
+                        out.known[s] = in.accKnown;
+                        out.value[s] = in.acc;
+                        out.accEquals.set(s);
+                    }
+                } else {
+                    // any one address now holds the accumulator, so only
+                    // those known to hold its value already stay known
+                    for(int s = 0; s < out.known.length; s++) {
+                        if(!in.accKnown || out.value[s] != in.acc)
+                            out.known[s] = false;
+                    }
+                }
+                break;
+            }
+            case 0x3: //ADD
+            case 0x4: //SUB
+            case 0x5: //MUL
+                if(!in.accKnown || value == UNKNOWN)
+                    out.setAcc(UNKNOWN);
+                else
+                    out.setAcc(op == 0x3 ? in.acc + (int)value
+                            : op == 0x4 ? in.acc - (int)value : in.acc * (int)value);
+                break;
+            case 0x6: //DIV
+                if(level > 0 && arg == 0 || level == 2 && read(in, arg) == 0 || value == 0)
+                    return null;
+                out.setAcc(!in.accKnown || value == UNKNOWN ? UNKNOWN : in.acc / (int)value);
+                break;
+            case 0x7: //AND
+                if(value == 0 || in.accKnown && in.acc == 0)
+                    out.setAcc(0);
+                else
+                    out.setAcc(!in.accKnown || value == UNKNOWN ? UNKNOWN : 1);
+                break;
+            case 0x8: //NOT
+                out.setAcc(in.accKnown ? (in.acc == 0 ? 1 : 0) : UNKNOWN);
+                break;
+            case 0x9: //CMPZ
+            case 0xA: //CMPL
+                out.setAcc(value == UNKNOWN ? UNKNOWN
+                        : (op == 0x9 ? value == 0 : value < 0) ? 1 : 0);
+                break;
+            case 0x14: //ROT, which may move anything
+                out.setAcc(UNKNOWN);
+                Arrays.fill(out.known, false);
+                break;
+        }
+        return out;
+    }
+
+    private void flow(Facts[] in, ArrayDeque<Integer> work, int target, Facts facts) {
+        if(target < 0 || target >= words.length)
+            return;
+        if(in[target] == null) {
+            in[target] = new Facts(facts);
+            work.add(target);
+        } else if(in[target].meet(facts) && !work.contains(target)) {
+            work.add(target);
+        }
+    }
+
+    /**
+     * Finds the facts on entry to every reachable line
+     * @return the facts, null for lines that are never reached
+     */
+    private Facts[] facts() {
+        Facts[] in = new Facts[words.length];
+        if(words.length == 0)
+            return in;
+        Facts entry = new Facts(addresses.length);
+        for(int s = 0; s < addresses.length; s++) {
+            entry.known[s] = true;
+            entry.value[s] = memory.getData(addresses[s]);
+        }
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        flow(in, work, 0, entry);
+        while(!work.isEmpty()) {
+            int pc = work.poll();
+            Facts out = after(words[pc], in[pc]);
+            if(out == null)
+                continue;
+            long word = words[pc];
+            int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+            if(op == 0xF)
+                continue;
+            if(op == 0x14) {
+                flow(in, work, pc, out);
+                continue;
+            }
+            if(op != 0xB && op != 0xC) {
+                flow(in, work, pc + 1, out);
+                continue;
+            }
+            long target = level == 0 ? arg : read(in[pc], arg);
+            if(op == 0xC && !(in[pc].accKnown && in[pc].acc == 0))
+                flow(in, work, pc + 1, out);
+            if(op == 0xC && in[pc].accKnown && in[pc].acc != 0)
+                continue;
+            Facts taken = out;
+            if(op == 0xC) {
+                taken = new Facts(out);
+                taken.accKnown = true;
+                taken.acc = 0;
+            }
+            if(target != UNKNOWN) {
+                flow(in, work, (int)target, taken);
+            } else {
+                for(int line = 0; line < words.length; line++) {
+                    flow(in, work, line, taken);
+                }
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Constant propagation and redundant load elimination
+     * @return true if any line changed
+     */
+    private boolean propagate() {
+        Facts[] in = facts();
+        boolean changed = false;
+        for(int pc = 0; pc < words.length; pc++) {
+            long word = in[pc] == null ? NOP : simplify(words[pc], in[pc]);
+            if(word != words[pc]) {
+                words[pc] = word;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private long simplify(long word, Facts in) {
+        int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+        if(!legal(op, level) || op == 0x14 || op == 0xF)
+            return word;
+        // an indirect address that is known becomes direct
+        if(level == 2) {
+            long address = address(in, arg, level);
+            if(address == UNKNOWN || address == FAILS || op == 0x6 && arg == 0)
+                return word;
+            word = Code.encode(op, (int)address, 1);
+            arg = (int)address;
+            level = 1;
+        }
+        // a direct operand that is known becomes immediate
+        if(level == 1 && op != 0x2) {
+            long value = operand(in, arg, level);
+            if(value == FAILS)
+                return word;
+            if(value != UNKNOWN) {
+                if(op == 0x9 || op == 0xA)
+                    return simplify(Code.encode(0x1,
+                                (op == 0x9 ? value == 0 : value < 0) ? 1 : 0, 0), in);
+                if(op != 0x6 || arg != 0 && value != 0) {
+                    word = Code.encode(op, (int)value, 0);
+                    arg = (int)value;
+                    level = 0;
+                }
+            }
+        }
+        if(level == 0 && (arg == 0 && (op == 0x3 || op == 0x4) || arg == 1 && (op == 0x5 || op == 0x6)))
+            return NOP;
+        if(op == 0xC && in.accKnown && !mayFail(word, in))
+            return in.acc == 0 ? Code.encode(0xB, arg, level) : NOP;
+        if(op == 0x2 && level == 1 && inBounds(arg)) {
+            int s = slot(arg);
+            if(s >= 0 && (in.accEquals.get(s) || in.accKnown && in.known[s] && in.value[s] == in.acc))
+                return NOP;
+        }
+        if(setsOnlyAcc(op) && !mayFail(word, in)) {
+            if(op == 0x1 && level == 1 && slot(arg) >= 0 && in.accEquals.get(slot(arg)))
+                return NOP;
+            Facts out = after(word, in);
+            if(in.accKnown && out.accKnown && in.acc == out.acc)
+                return NOP;
+        }
+        return word;
+    }
+
+    private static boolean setsOnlyAcc(int op) {
+        return op == 0x1 || op >= 0x3 && op <= 0xA;
+    }
+
+    private boolean hasIndirectJump() {
+        for(long word : words) {
+            int op = Code.op(word);
+            if((op == 0xB || op == 0xC) && Code.indirectionLevel(word) == 1)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Dead store elimination, from which addresses and whether the
+     * accumulator can still be read after each line. Bit 0 stands for the
+     * accumulator and bit s + 1 for slot s; addresses without a slot are
+     * always live.
+     * @return true if any line changed
+     */
+    private boolean removeDead() {
+        int bits = addresses.length + 1;
+        BitSet all = new BitSet(bits);
+        all.set(0, bits);
+        BitSet[] liveIn = new BitSet[words.length];
+        for(int pc = 0; pc < words.length; pc++) {
+            liveIn[pc] = new BitSet(bits);
+        }
+        BitSet[] liveOut = new BitSet[words.length];
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int pc = words.length - 1; pc >= 0; pc--) {
+                liveOut[pc] = liveOut(pc, liveIn, all);
+                BitSet live = liveIn(pc, liveOut[pc], all);
+                if(!live.equals(liveIn[pc])) {
+                    liveIn[pc] = live;
+                    changed = true;
+                }
+            }
+        }
+        boolean removed = false;
+        for(int pc = 0; pc < words.length; pc++) {
+            long word = words[pc];
+            int op = Code.op(word), arg = Code.arg(word);
+            if(mayFail(word, null))
+                continue;
+            if(op == 0x2 && slot(arg) >= 0 && !liveOut[pc].get(slot(arg) + 1)
+                    || setsOnlyAcc(op) && !liveOut[pc].get(0)) {
+                words[pc] = NOP;
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private BitSet liveOut(int pc, BitSet[] liveIn, BitSet all) {
+        long word = words[pc];
+        int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+        if(op == 0xF || !legal(op, level))
+            return all;
+        if((op == 0xB || op == 0xC) && level == 1)
+            return all;
+        BitSet live = new BitSet();
+        int[] next = op == 0xB ? new int[] {arg} : op == 0xC ? new int[] {arg, pc + 1}
+            : op == 0x14 ? new int[] {pc} : new int[] {pc + 1};
+        for(int target : next) {
+            if(target < 0 || target >= words.length)
+                return all;
+            live.or(liveIn[target]);
+        }
+        return live;
+    }
+
+    private BitSet liveIn(int pc, BitSet liveOut, BitSet all) {
+        long word = words[pc];
+        int op = Code.op(word), arg = Code.arg(word), level = Code.indirectionLevel(word);
+        if(op == 0xF || mayFail(word, null))
+            return all;
+        BitSet live = (BitSet)liveOut.clone();
+        int s = level == 1 ? slot(arg) : -1;
+        if(op == 0x2) {
+            if(s >= 0)
+                live.clear(s + 1);
+            live.set(0);
+            return live;
+        }
+        if(setsOnlyAcc(op))
+            live.clear(0);
+        if(op >= 0x3 && op <= 0x8 || op == 0xC)
+            live.set(0);
+        if(s >= 0)
+            live.set(s + 1);
+        return live;
+    }
+
+    /**
+     * @return where execution really goes on from target, past NOPs and
+     * direct JUMPs, or target itself if that leads round in a circle
+     */
+    private int thread(int target) {
+        return thread(target, -1);
+    }
+
+    /**
+     * @return where execution goes on from target like thread(target), but
+     * stopping at the line stop if the way there passes through it
+     */
+    private int thread(int target, int stop) {
+        int line = target;
+        for(int hops = 0; hops <= words.length; hops++) {
+            if(line < 0 || line >= words.length || line == stop)
+                return line;
+            long word = words[line];
+            if(word == NOP)
+                line++;
+            else if(Code.op(word) == 0xB && Code.indirectionLevel(word) == 0)
+                line = Code.arg(word);
+            else
+                return line;
+        }
+        return target;
+    }
+
+    /**
+     * Jump threading
+     * @return true if any line changed
+     */
+    private boolean threadJumps() {
+        boolean changed = false;
+        for(int pc = 0; pc < words.length; pc++) {
+            long word = words[pc];
+            int op = Code.op(word);
+            if(op != 0xB && op != 0xC || Code.indirectionLevel(word) != 0)
+                continue;
+            int target = thread(Code.arg(word));
+            long rewritten = Code.encode(op, target, 0);
+            // the jump can only go if falling through gets to the target
+            // without coming back through the jump itself
+            if(target == thread(pc + 1, pc) && target != pc)
+                rewritten = NOP;
+            else if(op == 0xB && target >= 0 && target < words.length && Code.op(words[target]) == 0xF)
+                rewritten = words[target];
+            if(rewritten != word) {
+                words[pc] = rewritten;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the lines without their NOPs, with jump targets renumbered
+     */
+    private long[] compact() {
+        int[] renumbered = new int[words.length + 1];
+        int count = 0;
+        for(int pc = 0; pc < words.length; pc++) {
+            renumbered[pc] = count;
+            if(words[pc] != NOP)
+                count++;
+        }
+        renumbered[words.length] = count;
+        long[] result = new long[count];
+        count = 0;
+        for(long word : words) {
+            if(word == NOP)
+                continue;
+            int op = Code.op(word), arg = Code.arg(word);
+            if((op == 0xB || op == 0xC) && Code.indirectionLevel(word) == 0 && arg >= 0) {
+                // a jump out of the program must still land outside it
+                arg = arg <= words.length ? renumbered[arg] : result.length + arg - words.length;
+                word = Code.encode(op, arg, 0);
+            }
+            result[count++] = word;
+        }
+        return result;
+    }
+
+    /**
+     * Writes a program in the .pexe format that Loader reads
+     * @param code the program
+     * @param memory the data, of which the addresses that are not 0 are
+     * written
+     */
+    public static void write(Code code, Memory memory, File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            for(int pc = 0; pc < code.size(); pc++) {
+                out.println(Integer.toString(code.getOp(pc), 16) + " "
+                        + Integer.toString(code.getArg(pc), 16).toUpperCase() + " "
+                        + Integer.toString(code.getIndirectionLevel(pc), 16));
+            }
+            out.println(-1);
+            for(int i = 0; i < memory.size(); i++) {
+                int value = memory.getData(i);
+                if(value != 0)
+                    out.println(Integer.toString(i, 16).toUpperCase() + " "
+                            + Integer.toString(value, 16).toUpperCase());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        if(args.length != 2) {
+            System.err.println("usage: java pippin.Optimizer input.pexe output.pexe");
+            System.exit(2);
+        }
+        MachineModel model = new MachineModel();
+        Code code = new Code();
+        Loader.loadOrThrow(model, code, new File(args[0]));
+        Optimizer optimizer = new Optimizer(code, model.getMemory());
+        write(optimizer.optimize(), model.getMemory(), new File(args[1]));
+        System.out.printf("%d lines to %d in %d rounds%s%n", optimizer.getLinesBefore(),
+                optimizer.getLinesAfter(), optimizer.getRounds(),
+                optimizer.isCompacted() ? "" : ", kept in place for indirect jumps");
+    }
+}
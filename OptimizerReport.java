@@ -0,0 +1,66 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+
+/**
+ * Optimizes programs and runs them before and after, printing for each
+ * how many lines and executed instructions the optimizer removed and
+ * whether both runs ended with the same status and data memory.
+ */
+public class OptimizerReport {
+    private static final long MAX_STEPS = 100000000;
+
+    public static void main(String[] args) throws FileNotFoundException {
+        String[] names = args;
+        if(names.length == 0) {
+            File[] files = new File("assembly").listFiles((dir, name) -> name.endsWith(".pexe"));
+            Arrays.sort(files);
+            names = new String[files.length];
+            for(int i = 0; i < files.length; i++) {
+                names[i] = files[i].getPath();
+            }
+        }
+        System.out.printf("%-28s %6s %6s %10s %10s %6s  %s%n",
+                "program", "lines", "after", "steps", "after", "saved", "state");
+        long totalLines = 0, totalLinesAfter = 0, totalSteps = 0, totalStepsAfter = 0;
+        for(String name : names) {
+            MachineModel before = new MachineModel(), after = new MachineModel();
+            Code code = new Code();
+            Optimizer optimizer;
+            try {
+                Loader.loadOrThrow(before, code, new File(name));
+                Loader.loadOrThrow(after, new Code(), new File(name));
+                optimizer = new Optimizer(code, before.getMemory());
+                after.setCode(optimizer.optimize());
+            } catch (RuntimeException e) {
+                System.out.printf("%-28s could not be loaded: %s%n", name, e);
+                continue;
+            }
+            before.setCode(code);
+            RunResult plain = before.run(MAX_STEPS);
+            RunResult optimized = after.run(MAX_STEPS);
+            boolean same = plain.getStatus() == optimized.getStatus()
+                && plain.getAccumulator() == optimized.getAccumulator()
+                && (plain.getTrap() == null) == (optimized.getTrap() == null)
+                && (plain.getTrap() == null || plain.getTrap().getClass() == optimized.getTrap().getClass())
+                && Arrays.equals(before.getData(), after.getData());
+            System.out.printf("%-28s %6d %6d %10d %10d %5.1f%%  %s%s%n", name,
+                    optimizer.getLinesBefore(), optimizer.getLinesAfter(),
+                    plain.getSteps(), optimized.getSteps(), saved(plain.getSteps(), optimized.getSteps()),
+                    same ? "same" : "DIFFERENT", optimizer.isCompacted() ? "" : ", not compacted");
+            totalLines += optimizer.getLinesBefore();
+            totalLinesAfter += optimizer.getLinesAfter();
+            totalSteps += plain.getSteps();
+            totalStepsAfter += optimized.getSteps();
+        }
+        System.out.printf("%-28s %6d %6d %10d %10d %5.1f%%  %.1f%% of lines%n", "total",
+                totalLines, totalLinesAfter, totalSteps, totalStepsAfter,
+                saved(totalSteps, totalStepsAfter), saved(totalLines, totalLinesAfter));
+    }
+
+    private static double saved(long before, long after) {
+        return before == 0 ? 0.0 : 100.0 * (before - after) / before;
+    }
+}
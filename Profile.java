@@ -0,0 +1,175 @@
+package pippin;
+
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Execution counts gathered while a MachineModel is profiling: how often
+ * each line ran, how often each JMPZ jumped and fell through, and how
+ * often each data address was read and written. Every counter is a slot
+ * in a plain long array; the data counters are kept in pages of
+ * Memory.PAGE_SIZE that are allocated when first touched, so a large
+ * memory only costs counters where the program goes.
+ */
+public class Profile {
+    private static final int PAGE_MASK = Memory.PAGE_SIZE - 1;
+
+    private final long[] executions = new long[Code.CODE_MAX];
+    private final long[] taken = new long[Code.CODE_MAX];
+    private final long[] notTaken = new long[Code.CODE_MAX];
+    private final int memorySize;
+    private final long[][] reads;
+    private final long[][] writes;
+
+    /**
+     * @param memorySize the number of data addresses to count
+     */
+    public Profile(int memorySize) {
+        this.memorySize = memorySize;
+        int pages = (memorySize + PAGE_MASK) >> Memory.PAGE_SHIFT;
+        this.reads = new long[pages][];
+        this.writes = new long[pages][];
+    }
+
+    /**
+     * Counts one executed line
+     * @param pc the line
+     * @param word the instruction on it
+     * @param accumulator the accumulator after it, which for a JMPZ tells
+     * whether it jumped
+     */
+    void executed(int pc, long word, int accumulator) {
+        executions[pc]++;
+        if(Code.op(word) == 0xC) {
+            if(accumulator == 0)
+                taken[pc]++;
+            else
+                notTaken[pc]++;
+        }
+    }
+
+    void read(int index) {
+        count(reads, index);
+    }
+
+    void written(int index, int length) {
+        for(int i = index; i < index + length; i++) {
+            count(writes, i);
+        }
+    }
+
+    private static void count(long[][] pages, int index) {
+        long[] page = pages[index >> Memory.PAGE_SHIFT];
+        if(page == null)
+            page = pages[index >> Memory.PAGE_SHIFT] = new long[Memory.PAGE_SIZE];
+        page[index & PAGE_MASK]++;
+    }
+
+    private static long get(long[][] pages, int index) {
+        long[] page = pages[index >> Memory.PAGE_SHIFT];
+        return page == null ? 0 : page[index & PAGE_MASK];
+    }
+
+    public int getMemorySize() {
+        return this.memorySize;
+    }
+
+    public long getExecutions(int pc) {
+        return this.executions[pc];
+    }
+
+    /**
+     * @return how often the JMPZ at pc jumped
+     */
+    public long getTaken(int pc) {
+        return this.taken[pc];
+    }
+
+    /**
+     * @return how often the JMPZ at pc went on to the next line
+     */
+    public long getNotTaken(int pc) {
+        return this.notTaken[pc];
+    }
+
+    public long getReads(int index) {
+        return get(reads, index);
+    }
+
+    public long getWrites(int index) {
+        return get(writes, index);
+    }
+
+    /**
+     * @return the number of instructions counted on all lines
+     */
+    public long getTotalExecutions() {
+        long total = 0;
+        for(long count : executions) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Sets every counter back to 0
+     */
+    public void clear() {
+        Arrays.fill(executions, 0);
+        Arrays.fill(taken, 0);
+        Arrays.fill(notTaken, 0);
+        Arrays.fill(reads, null);
+        Arrays.fill(writes, null);
+    }
+
+    /**
+     * @return the indexes below length with the n largest counts that are
+     * not 0, largest first
+     */
+    private static int[] top(int length, IntToLongFunction count, int n) {
+        int[] best = new int[n];
+        long[] counts = new long[n];
+        int found = 0;
+        for(int i = 0; i < length; i++) {
+            long c = count.applyAsLong(i);
+            if(c == 0 || found == n && c <= counts[n - 1])
+                continue;
+            int at = Math.min(found, n - 1);
+            while(at > 0 && counts[at - 1] < c) {
+                best[at] = best[at - 1];
+                counts[at] = counts[at - 1];
+                at--;
+            }
+            best[at] = i;
+            counts[at] = c;
+            found = Math.min(found + 1, n);
+        }
+        return Arrays.copyOf(best, found);
+    }
+
+    /**
+     * @param code the program that was profiled, for its disassembly
+     * @param n the most lines and addresses to list
+     * @return the n most executed lines, with their share of all executed
+     * instructions and, for JMPZ, how often they jumped, followed by the
+     * n most used data addresses
+     */
+    public String report(Code code, int n) {
+        StringBuilder builder = new StringBuilder();
+        long total = getTotalExecutions();
+        builder.append(String.format("%5s %12s %6s  %-12s %s%n", "line", "executions", "share",
+                    "instruction", "jumps"));
+        for(int pc : top(executions.length, pc -> executions[pc], n)) {
+            String text = code.getCodeText(pc);
+            if(taken[pc] + notTaken[pc] > 0)
+                text = String.format("%-12s taken %d, not taken %d", text, taken[pc], notTaken[pc]);
+            builder.append(String.format("%5d %12d %5.1f%%  %s%n", pc, executions[pc],
+                        100.0 * executions[pc] / total, text));
+        }
+        builder.append(String.format("%5s %12s %12s%n", "addr", "reads", "writes"));
+        for(int index : top(memorySize, i -> get(reads, i) + get(writes, i), n)) {
+            builder.append(String.format("%5d %12d %12d%n", index, get(reads, index), get(writes, index)));
+        }
+        return builder.toString();
+    }
+}
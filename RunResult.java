@@ -0,0 +1,65 @@
+package pippin;
+
+/**
+ * What became of a call to MachineModel.run: why it stopped, how many
+ * instructions it executed and the registers it left behind.
+ */
+public class RunResult {
+    public enum Status {
+        /** the program executed HALT */
+        HALTED,
+        /** the step budget ran out before the program halted */
+        BUDGET_EXHAUSTED,
+        /** an instruction failed; getTrap says how */
+        TRAPPED,
+        /** the time budget ran out before the program halted */
+        TIMED_OUT,
+        /** the machine came back to a state it had been in, so it would never halt */
+        CYCLE_DETECTED
+    }
+
+    private final Status status;
+    private final long steps;
+    private final int programCounter;
+    private final int accumulator;
+    private final RuntimeException trap;
+
+    public RunResult(Status status, long steps, int programCounter, int accumulator,
+            RuntimeException trap) {
+        this.status = status;
+        this.steps = steps;
+        this.programCounter = programCounter;
+        this.accumulator = accumulator;
+        this.trap = trap;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public long getSteps() {
+        return this.steps;
+    }
+
+    public int getProgramCounter() {
+        return this.programCounter;
+    }
+
+    public int getAccumulator() {
+        return this.accumulator;
+    }
+
+    /**
+     * @return the exception that stopped a TRAPPED run, otherwise null
+     */
+    public RuntimeException getTrap() {
+        return this.trap;
+    }
+
+    @Override
+    public String toString() {
+        return status + " steps=" + steps + " pc=" + programCounter + " acc=" + accumulator
+            + (trap == null ? "" : " trap=" + trap.getClass().getSimpleName()
+                    + (trap.getMessage() == null ? "" : ": " + trap.getMessage()));
+    }
+}
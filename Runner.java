@@ -2,8 +2,12 @@ package pippin;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class Runner {
+    private static final int PROFILE_LINES = 10;
 
     /*public static void main(String[] args) {
       MachineModel model = new MachineModel();
@@ -39,43 +43,86 @@ public class Runner {
       System.out.println("memory[2] = " + model.getData(2));
       }
       }*/
-    public static void main(String[] args) throws FileNotFoundException {
-        MachineModel model = new MachineModel();
-        Code program1 = new Code();
-        Loader.load(model, program1, new File("test1.pexe"));
-        System.out.println("program1");
-        int pc = 0;
-        while(pc < 3) {
-            System.out.println(program1.getCodeText(pc));
-            int op = program1.getOp(pc);
-            int arg = program1.getArg(pc);
-            int lev = program1.getIndirectionLevel(pc);
-            Instruction instr = model.INSTRUCTION_MAP.get(op);
-            instr.execute(arg, lev);
-            pc = model.getProgramCounter();
-            System.out.println("memory[0] = " + model.getData(0));
-            System.out.println("memory[1] = " + model.getData(1));
-            System.out.println("memory[2] = " + model.getData(2));
+    /**
+     * Runs one executable headless and prints how the run ended
+     * @param args optionally -memory words, to give the machine more or
+     * less than Memory.DATA_SIZE words; optionally -profile, to print the
+     * hottest lines and data addresses at the end; optionally -trace file,
+     * to record every step with TraceWriter; optionally -checkpoint
+     * file interval, to save the machine to file every interval steps and
+     * when the run ends; then the .pexe file, or a checkpoint file to
+     * resume from; then optionally the most steps to run (in decimal,
+     * unlimited by default)
+     */
+    public static void main(String[] args) throws IOException {
+        Metrics.register();
+        Path checkpoint = null;
+        long interval = 0;
+        int memorySize = Memory.DATA_SIZE;
+        int first = 0;
+        if(args.length >= first + 2 && args[first].equals("-memory")) {
+            memorySize = Integer.parseInt(args[first + 1]);
+            first += 2;
         }
-        System.out.println("======================");
-        System.out.println("program2");
-        pc = 0;
-        model.clearMemory();
-        model.setAccumulator(0);
-        model.setProgramCounter(0);
-        Code program2 = new Code();
-        Loader.load(model, program2, new File("test2.pexe"));
-        while (true){
-            pc = model.getProgramCounter();
-            System.out.println(program2.getCodeText(pc));
-            int op = program2.getOp(pc);
-            int arg = program2.getArg(pc);
-            int lev = program2.getIndirectionLevel(pc);
-            Instruction instr = model.INSTRUCTION_MAP.get(op);
-            instr.execute(arg, lev);
-            System.out.println("memory[0] = " + model.getData(0));
-            System.out.println("memory[1] = " + model.getData(1));
-            System.out.println("acc = " + model.getAccumulator());
+        boolean profile = args.length > first && args[first].equals("-profile");
+        if(profile)
+            first++;
+        Path trace = null;
+        if(args.length >= first + 2 && args[first].equals("-trace")) {
+            trace = Paths.get(args[first + 1]);
+            first += 2;
         }
+        if(args.length >= first + 3 && args[first].equals("-checkpoint")) {
+            checkpoint = Paths.get(args[first + 1]);
+            interval = Long.parseLong(args[first + 2]);
+            first += 3;
+        }
+        if(args.length - first < 1 || args.length - first > 2) {
+            System.err.println("usage: java pippin.Runner [-memory words] [-profile] [-trace file]"
+                    + " [-checkpoint file interval] program.pexe|saved.ckpt [maxSteps]");
+            System.exit(2);
+        }
+        long maxSteps = args.length - first > 1 ? Long.parseLong(args[first + 1]) : Long.MAX_VALUE;
+        MachineModel model;
+        long stepsSoFar = 0;
+        if(args[first].endsWith(".ckpt")) {
+            Path saved = Paths.get(args[first]);
+            model = new MachineModel(Checkpoint.readMemorySize(saved));
+            stepsSoFar = Checkpoint.restore(saved, model);
+        } else {
+            model = new MachineModel(memorySize);
+            Code code = new Code();
+            try {
+                Loader.loadOrThrow(model, code, new File(args[first]));
+            } catch (FileNotFoundException | RuntimeException e) {
+                System.err.println(args[first] + " UNLOADABLE " + e);
+                System.exit(1);
+            }
+            model.setCode(code);
+        }
+        model.setProfiling(profile);
+        TraceWriter tracer = trace == null ? null : new TraceWriter(trace);
+        model.setTrace(tracer);
+        try {
+            if(checkpoint == null) {
+                System.out.println(model.run(maxSteps));
+            } else {
+                try (CheckpointWriter writer = new CheckpointWriter(checkpoint)) {
+                    RunResult result = writer.run(model, maxSteps, interval, stepsSoFar);
+                    System.out.println(result);
+                    System.err.printf("%d checkpoints written, %d skipped, longest pause %.1f us, %d steps in all%n",
+                            writer.getWritten(), writer.getSkipped(), writer.getMaxPauseNanos() / 1e3,
+                            stepsSoFar + result.getSteps());
+                }
+            }
+        } finally {
+            if(tracer != null) {
+                tracer.close();
+                System.err.printf("%d steps traced, waited %d times for the trace writer%n",
+                        tracer.getRecorded(), tracer.getWaits());
+            }
+        }
+        if(profile)
+            System.out.print(model.getProfile().report(model.getCode(), PROFILE_LINES));
     }
 }
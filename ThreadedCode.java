@@ -0,0 +1,387 @@
+package pippin;
+
+import java.util.Objects;
+
+/**
+ * A Code segment translated once into a chain of handlers, one per line.
+ * Each handler already knows its opcode, addressing mode, argument and the
+ * line that follows it, so executing it needs no decoding, no level
+ * checks and no table lookup. Instructions whose addressing mode is
+ * illegal, or that are rare enough not to be worth specializing (HALT and
+ * ROT), get a handler that hands the original word to the interpreter, so
+ * they behave and fail exactly as they do when interpreted.
+ *
+ * With fusion on, a second pass looks for common sequences (load, add or
+ * subtract, store; compare and branch; compare, NOT and branch) whose
+ * addresses are all fixed and inside memory, and gives the first line a
+ * fused handler that does the whole sequence in one dispatch. Fused
+ * handlers cannot fail part way, leave exactly the state the separate
+ * instructions would, and are not built across a line that some JUMP or
+ * JMPZ targets. Every line keeps its single handler too, for stepping and
+ * for jumps into the middle of a sequence.
+ */
+class ThreadedCode {
+    /**
+     * One translated instruction
+     */
+    interface Handler {
+        /**
+         * Executes the instruction against the machine
+         * @return the line to execute next
+         */
+        int execute();
+    }
+
+    private final MachineModel model;
+    private Memory memory;
+    private final Code code;
+    private final int version;
+    private final Handler[] handlers;
+    private final Handler[] fused;
+    private final int[] widths;
+    private long dispatchesSaved;
+
+    ThreadedCode(MachineModel model, Code code, boolean fuse) {
+        this.model = model;
+        this.memory = model.getMemory();
+        this.code = code;
+        this.version = code.getVersion();
+        this.handlers = new Handler[code.size()];
+        for(int pc = 0; pc < handlers.length; pc++) {
+            handlers[pc] = translate(pc, code.getWord(pc));
+        }
+        if(fuse) {
+            this.fused = new Handler[handlers.length];
+            this.widths = new int[handlers.length];
+            fuse();
+        } else {
+            this.fused = null;
+            this.widths = null;
+        }
+    }
+
+    /**
+     * @return true if this is an up to date translation of code that
+     * works on a memory the size of memory
+     */
+    boolean isTranslationOf(Code code, Memory memory, boolean fuse) {
+        return this.code == code && this.version == code.getVersion()
+            && this.memory.size() == memory.size() && (this.fused != null) == fuse;
+    }
+
+    /**
+     * Points the handlers at memory, which is the size of the one they
+     * were translated for, as after the machine was restored
+     */
+    void setMemory(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Executes the handler for one line
+     * @param pc the line to execute
+     * @return the line to execute next
+     * @throws IndexOutOfBoundsException if pc is not a line of the program
+     */
+    int execute(int pc) {
+        return handlers[Objects.checkIndex(pc, handlers.length)].execute();
+    }
+
+    /**
+     * @param pc a line of the program, or any other number
+     * @return how many instructions the fused handler at pc executes, or
+     * 1 if there is none
+     */
+    int width(int pc) {
+        return widths != null && pc >= 0 && pc < widths.length && widths[pc] > 1 ? widths[pc] : 1;
+    }
+
+    /**
+     * Executes the fused handler at pc, which must have a width over 1
+     * @param pc the first line of the fused sequence
+     * @return the line to execute next
+     */
+    int executeFused(int pc) {
+        dispatchesSaved += widths[pc] - 1;
+        return fused[pc].execute();
+    }
+
+    /**
+     * @return how many dispatches fused handlers have saved so far
+     */
+    long getDispatchesSaved() {
+        return this.dispatchesSaved;
+    }
+
+    private boolean isFixedAddress(long word) {
+        int arg = Code.arg(word);
+        return Code.indirectionLevel(word) == 1 && arg >= 0 && arg < memory.size();
+    }
+
+    private void fuse() {
+        boolean[] targets = new boolean[handlers.length];
+        for(int pc = 0; pc < handlers.length; pc++) {
+            long word = code.getWord(pc);
+            int op = Code.op(word);
+            int target = Code.arg(word);
+            if((op == 0xB || op == 0xC) && Code.indirectionLevel(word) == 0
+                    && target >= 0 && target < targets.length) {
+                targets[target] = true;
+            }
+        }
+        for(int pc = 0; pc < handlers.length; pc++) {
+            Handler handler = null;
+            int width = 0;
+            if(pc + 2 < handlers.length && !targets[pc + 1] && !targets[pc + 2]) {
+                handler = fuseThree(pc, code.getWord(pc), code.getWord(pc + 1), code.getWord(pc + 2));
+                width = 3;
+            }
+            if(handler == null && pc + 1 < handlers.length && !targets[pc + 1]) {
+                handler = fuseTwo(pc, code.getWord(pc), code.getWord(pc + 1));
+                width = 2;
+            }
+            if(handler != null) {
+                fused[pc] = handler;
+                widths[pc] = width;
+            }
+        }
+    }
+
+    // LOD [x / ADD or SUB [y or immediate / STO [z, and CMPZ or CMPL [t / NOT / JMPZ L
+    private Handler fuseThree(int pc, long first, long second, long third) {
+        final int next = pc + 3;
+        int op1 = Code.op(first), op2 = Code.op(second), op3 = Code.op(third);
+        int level2 = Code.indirectionLevel(second);
+        if(op1 == 0x1 && isFixedAddress(first) && (op2 == 0x3 || op2 == 0x4)
+                && (level2 == 0 || isFixedAddress(second)) && op3 == 0x2 && isFixedAddress(third)) {
+            final int from = Code.arg(first);
+            final int to = Code.arg(third);
+            final int operand = Code.arg(second);
+            final int sign = op2 == 0x3 ? 1 : -1;
+            if(level2 == 0)
+                return () -> {
+                    int value = memory.getData(from) + sign * operand;
+                    model.setAccumulator(value);
+                    memory.setData(to, value);
+                    return next;
+                };
+            return () -> {
+                int value = memory.getData(from) + sign * memory.getData(operand);
+                model.setAccumulator(value);
+                memory.setData(to, value);
+                return next;
+            };
+        }
+        if((op1 == 0x9 || op1 == 0xA) && isFixedAddress(first) && op2 == 0x8
+                && Code.indirectionLevel(second) == 0 && op3 == 0xC
+                && Code.indirectionLevel(third) == 0) {
+            final int address = Code.arg(first);
+            final int target = Code.arg(third);
+            final boolean zeroTest = op1 == 0x9;
+            // after the NOT the accumulator is 1 exactly when the compare failed
+            return () -> {
+                int value = memory.getData(address);
+                boolean compared = zeroTest ? value == 0 : value < 0;
+                model.setAccumulator(compared ? 0 : 1);
+                return compared ? target : next;
+            };
+        }
+        return null;
+    }
+
+    // CMPZ or CMPL [t / JMPZ L
+    private Handler fuseTwo(int pc, long first, long second) {
+        final int next = pc + 2;
+        int op1 = Code.op(first);
+        if((op1 == 0x9 || op1 == 0xA) && isFixedAddress(first) && Code.op(second) == 0xC
+                && Code.indirectionLevel(second) == 0) {
+            final int address = Code.arg(first);
+            final int target = Code.arg(second);
+            final boolean zeroTest = op1 == 0x9;
+            return () -> {
+                int value = memory.getData(address);
+                boolean compared = zeroTest ? value == 0 : value < 0;
+                model.setAccumulator(compared ? 1 : 0);
+                return compared ? next : target;
+            };
+        }
+        return null;
+    }
+
+    private Handler translate(int pc, long word) {
+        final int op = Code.op(word);
+        final int arg = Code.arg(word);
+        final int level = Code.indirectionLevel(word);
+        final int next = pc + 1;
+        switch(op) {
+            case 0x0: //NOP
+                if(level == 0)
+                    return () -> next;
+                break;
+            case 0x1: //LOD
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(arg);
+                        return next;
+                    };
+                if(level == 1)
+                    return () -> {
+                        model.setAccumulator(memory.getData(arg));
+                        return next;
+                    };
+                if(level == 2)
+                    return () -> {
+                        model.setAccumulator(memory.getData(memory.getData(arg)));
+                        return next;
+                    };
+                break;
+            case 0x2: //STO
+                if(level == 1)
+                    return () -> {
+                        memory.setData(arg, model.getAccumulator());
+                        return next;
+                    };
+                if(level == 2)
+                    return () -> {
+                        memory.setData(memory.getData(arg), model.getAccumulator());
+                        return next;
+                    };
+                break;
+            case 0x3: //ADD
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() + arg);
+                        return next;
+                    };
+                if(level == 1)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() + memory.getData(arg));
+                        return next;
+                    };
+                if(level == 2)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator()
+                                + memory.getData(memory.getData(arg)));
+                        return next;
+                    };
+                break;
+            case 0x4: //SUB
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() - arg);
+                        return next;
+                    };
+                if(level == 1)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() - memory.getData(arg));
+                        return next;
+                    };
+                if(level == 2)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator()
+                                - memory.getData(memory.getData(arg)));
+                        return next;
+                    };
+                break;
+            case 0x5: //MUL
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() * arg);
+                        return next;
+                    };
+                if(level == 1)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() * memory.getData(arg));
+                        return next;
+                    };
+                if(level == 2)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator()
+                                * memory.getData(memory.getData(arg)));
+                        return next;
+                    };
+                break;
+            case 0x6: //DIV, which refuses a zero anywhere along the chain of addresses
+                if(arg == 0)
+                    break;
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() / arg);
+                        return next;
+                    };
+                if(level == 1)
+                    return () -> {
+                        int divisor = memory.getData(arg);
+                        if(divisor == 0)
+                            throw new DivideByZeroException("Division by Zero");
+                        model.setAccumulator(model.getAccumulator() / divisor);
+                        return next;
+                    };
+                if(level == 2)
+                    return () -> {
+                        int address = memory.getData(arg);
+                        if(address == 0)
+                            throw new DivideByZeroException("Division by Zero");
+                        int divisor = memory.getData(address);
+                        if(divisor == 0)
+                            throw new DivideByZeroException("Division by Zero");
+                        model.setAccumulator(model.getAccumulator() / divisor);
+                        return next;
+                    };
+                break;
+            case 0x7: //AND
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() != 0 && arg != 0 ? 1 : 0);
+                        return next;
+                    };
+                if(level == 1)
+                    return () -> {
+                        int value = memory.getData(arg);
+                        model.setAccumulator(model.getAccumulator() != 0 && value != 0 ? 1 : 0);
+                        return next;
+                    };
+                break;
+            case 0x8: //NOT
+                if(level == 0)
+                    return () -> {
+                        model.setAccumulator(model.getAccumulator() == 0 ? 1 : 0);
+                        return next;
+                    };
+                break;
+            case 0x9: //CMPZ
+                if(level == 1)
+                    return () -> {
+                        model.setAccumulator(memory.getData(arg) == 0 ? 1 : 0);
+                        return next;
+                    };
+                break;
+            case 0xA: //CMPL
+                if(level == 1)
+                    return () -> {
+                        model.setAccumulator(memory.getData(arg) < 0 ? 1 : 0);
+                        return next;
+                    };
+                break;
+            case 0xB: //JUMP
+                if(level == 0)
+                    return () -> arg;
+                if(level == 1)
+                    return () -> memory.getData(arg);
+                break;
+            case 0xC: //JMPZ
+                if(level == 0)
+                    return () -> model.getAccumulator() == 0 ? arg : next;
+                if(level == 1)
+                    return () -> {
+                        int target = memory.getData(arg);
+                        return model.getAccumulator() == 0 ? target : next;
+                    };
+                break;
+        }
+        return () -> {
+            model.interpret(pc, word);
+            return model.getProgramCounter();
+        };
+    }
+}
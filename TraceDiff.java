@@ -0,0 +1,279 @@
+package pippin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+/**
+ * Finds the first step at which two executions part ways, either from
+ * two traces written by TraceWriter or by stepping two machines in
+ * lockstep, and shows the steps leading up to it. Neither way keeps more
+ * than CONTEXT steps in memory, however long the runs are: traces are
+ * compared straight from their mapped segments, a segment at a time, and
+ * machines only remember their last few steps.
+ */
+public class TraceDiff {
+    /**
+     * How many steps before the divergence are shown
+     */
+    public static final int CONTEXT = 5;
+    /**
+     * How many steps lockstep runs at a time when a machine uses the
+     * TIERED engine
+     */
+    public static final int SLICE = 1 << 14;
+
+    /**
+     * @return the first step whose records differ, the length of the
+     * shorter trace if it is the start of the longer one, or -1 if the
+     * traces are the same
+     */
+    public static long firstDivergence(TraceReader a, TraceReader b) {
+        long common = Math.min(a.size(), b.size());
+        if(a.getSegmentRecords() == b.getSegmentRecords()) {
+            int perSegment = a.getSegmentRecords();
+            for(int index = 0; (long)index * perSegment < common; index++) {
+                ByteBuffer left = a.records(index), right = b.records(index);
+                int mismatch = left.mismatch(right);
+                if(mismatch >= 0) {
+                    long step = (long)index * perSegment + mismatch / TraceWriter.RECORD_SIZE;
+                    return Math.min(step, common);
+                }
+            }
+        } else {
+            for(long step = 0; step < common; step++) {
+                if(!sameRecord(a, b, step))
+                    return step;
+            }
+        }
+        return a.size() == b.size() ? -1 : common;
+    }
+
+    private static boolean sameRecord(TraceReader a, TraceReader b, long step) {
+        return a.getProgramCounter(step) == b.getProgramCounter(step)
+            && a.getOpcode(step) == b.getOpcode(step)
+            && a.getIndirectionLevel(step) == b.getIndirectionLevel(step)
+            && a.isWrite(step) == b.isWrite(step)
+            && a.getAddress(step) == b.getAddress(step)
+            && a.getValue(step) == b.getValue(step)
+            && a.getAccumulator(step) == b.getAccumulator(step);
+    }
+
+    /**
+     * @param code the program, for disassembly, or null to name the opcode
+     * from the record instead
+     * @return the CONTEXT steps of both traces before step, and step itself
+     */
+    public static String context(TraceReader a, TraceReader b, long step, Code code) {
+        StringBuilder builder = new StringBuilder();
+        for(long s = Math.max(0, step - CONTEXT); s <= step; s++) {
+            builder.append(s == step ? "> " : "  ").append(describe(a, s, code)).append(" | ")
+                .append(describe(b, s, code)).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    private static String describe(TraceReader trace, long step, Code code) {
+        if(step >= trace.size())
+            return "(ended)";
+        int pc = trace.getProgramCounter(step);
+        String text = code != null ? code.getCodeText(pc)
+            : InstructionMap.mnemonics.getOrDefault(trace.getOpcode(step), "?");
+        return step(step, pc, text, trace.getAccumulator(step), trace.isWrite(step),
+                trace.getAddress(step), trace.getValue(step));
+    }
+
+    private static String step(long step, int pc, String text, int accumulator, boolean wrote,
+            int address, int value) {
+        String line = String.format("%d: %d %-10s acc=%d", step, pc, text, accumulator);
+        return wrote ? line + String.format(" [%d]=%d", address, value) : line;
+    }
+
+    /**
+     * The last steps of a machine stepped by lockstep
+     */
+    private static class Recent {
+        final MachineModel machine;
+        final Memory memory;
+        final int[] pc = new int[CONTEXT + 1];
+        final int[] accumulator = new int[CONTEXT + 1];
+        final int[] address = new int[CONTEXT + 1];
+        final int[] value = new int[CONTEXT + 1];
+        final boolean[] wrote = new boolean[CONTEXT + 1];
+        RuntimeException trap;
+        long lastStep;
+
+        Recent(MachineModel machine) {
+            this.machine = machine;
+            this.memory = machine.getMemory();
+        }
+
+        // executes step number n and remembers it
+        void step(long n) {
+            lastStep = n;
+            int slot = (int)(n % pc.length);
+            pc[slot] = machine.getProgramCounter();
+            long writes = memory.getWriteCount();
+            try {
+                machine.step();
+            } catch (RuntimeException e) {
+                trap = e;
+            }
+            wrote[slot] = memory.getWriteCount() != writes;
+            address[slot] = wrote[slot] ? memory.getChangedIndex() : -1;
+            value[slot] = wrote[slot] ? memory.peek(address[slot]) : 0;
+            accumulator[slot] = machine.getAccumulator();
+        }
+
+        boolean sameStep(Recent other, long n) {
+            int slot = (int)(n % pc.length);
+            return pc[slot] == other.pc[slot] && accumulator[slot] == other.accumulator[slot]
+                && wrote[slot] == other.wrote[slot] && address[slot] == other.address[slot]
+                && value[slot] == other.value[slot]
+                && machine.isRunning() == other.machine.isRunning()
+                && (trap == null ? other.trap == null
+                    : other.trap != null && trap.getClass() == other.trap.getClass());
+        }
+
+        String describe(long n) {
+            int slot = (int)(n % pc.length);
+            String line = TraceDiff.step(n, pc[slot], machine.getCode().getCodeText(pc[slot]),
+                    accumulator[slot], wrote[slot], address[slot], value[slot]);
+            if(n == lastStep && trap != null)
+                line += " " + trap;
+            return line;
+        }
+    }
+
+    /**
+     * Steps a and b one instruction at a time, each with its own engine,
+     * until one of them does something the other does not: runs a
+     * different line, leaves a different accumulator, writes a different
+     * address or value, stops or fails. Compiled loops only run when they
+     * have a whole iteration of budget, so if either machine uses the
+     * TIERED engine both are run SLICE steps at a time instead, from a
+     * snapshot of each, and compared after each slice by their registers,
+     * status, write counts and the addresses either wrote. A slice that
+     * differs is restored and stepped again one instruction at a time to
+     * find the step, so the context shown starts no earlier than the slice.
+     * @param maxSteps the most steps to compare
+     * @param context if not null, gets the last CONTEXT steps of both
+     * machines and the step where they diverged
+     * @return the step at which they diverged, or -1 if they stopped
+     * together or maxSteps ran out first
+     */
+    public static long lockstep(MachineModel a, MachineModel b, long maxSteps, StringBuilder context) {
+        if(a.getEngine() == MachineModel.Engine.TIERED || b.getEngine() == MachineModel.Engine.TIERED)
+            return slices(a, b, maxSteps, context);
+        return stepwise(a, b, 0, maxSteps, context);
+    }
+
+    // lockstep one instruction at a time, numbering the steps from first
+    private static long stepwise(MachineModel a, MachineModel b, long first, long maxSteps,
+            StringBuilder context) {
+        Recent left = new Recent(a), right = new Recent(b);
+        for(long n = first; n < maxSteps && a.isRunning() && b.isRunning(); n++) {
+            left.step(n);
+            right.step(n);
+            if(!left.sameStep(right, n)) {
+                if(context != null) {
+                    for(long s = Math.max(first, n - CONTEXT); s <= n; s++) {
+                        context.append(s == n ? "> " : "  ").append(left.describe(s)).append(" | ")
+                            .append(right.describe(s)).append(System.lineSeparator());
+                    }
+                }
+                return n;
+            }
+            if(left.trap != null)
+                return -1;
+        }
+        return -1;
+    }
+
+    private static long slices(MachineModel a, MachineModel b, long maxSteps, StringBuilder context) {
+        Memory leftMemory = a.getMemory(), rightMemory = b.getMemory();
+        boolean leftTracking = leftMemory.isDirtyTracking(), rightTracking = rightMemory.isDirtyTracking();
+        leftMemory.setDirtyTracking(true);
+        rightMemory.setDirtyTracking(true);
+        try {
+            for(long n = 0; n < maxSteps && a.isRunning() && b.isRunning(); ) {
+                MachineModel.Snapshot leftStart = a.snapshot(), rightStart = b.snapshot();
+                long leftWrites = leftMemory.getWriteCount(), rightWrites = rightMemory.getWriteCount();
+                long budget = Math.min(SLICE, maxSteps - n);
+                RunResult left = a.run(budget);
+                RunResult right = b.run(budget);
+                boolean[] same = {true};
+                leftMemory.drainDirty(i -> same[0] &= leftMemory.peek(i) == rightMemory.peek(i));
+                rightMemory.drainDirty(i -> same[0] &= leftMemory.peek(i) == rightMemory.peek(i));
+                if(!same[0] || left.getStatus() != right.getStatus() || left.getSteps() != right.getSteps()
+                        || left.getProgramCounter() != right.getProgramCounter()
+                        || left.getAccumulator() != right.getAccumulator()
+                        || leftMemory.getWriteCount() - leftWrites != rightMemory.getWriteCount() - rightWrites
+                        || left.getTrap() != null && left.getTrap().getClass() != right.getTrap().getClass()) {
+                    a.restore(leftStart);
+                    b.restore(rightStart);
+                    long step = stepwise(a, b, n, n + budget, context);
+                    if(step >= 0)
+                        return step;
+                } else if(left.getStatus() != RunResult.Status.BUDGET_EXHAUSTED) {
+                    return -1;
+                }
+                n += budget;
+            }
+            return -1;
+        } finally {
+            a.getMemory().setDirtyTracking(leftTracking);
+            b.getMemory().setDirtyTracking(rightTracking);
+        }
+    }
+
+    private static MachineModel load(String file, MachineModel.Engine engine) throws IOException {
+        MachineModel model = new MachineModel();
+        Code code = new Code();
+        Loader.loadOrThrow(model, code, new File(file));
+        model.setCode(code);
+        model.setEngine(engine);
+        model.setRunning(true);
+        return model;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length >= 3 && args[0].equals("-run")) {
+            int first = 1;
+            MachineModel.Engine engineA = MachineModel.Engine.INTERPRETER, engineB = engineA;
+            if(args[first].equals("-engines") && args.length >= first + 5) {
+                engineA = MachineModel.Engine.valueOf(args[first + 1].toUpperCase());
+                engineB = MachineModel.Engine.valueOf(args[first + 2].toUpperCase());
+                first += 3;
+            }
+            long maxSteps = args.length > first + 2 ? Long.parseLong(args[first + 2]) : Long.MAX_VALUE;
+            StringBuilder context = new StringBuilder();
+            long step = lockstep(load(args[first], engineA), load(args[first + 1], engineB),
+                    maxSteps, context);
+            System.out.println(step < 0 ? "no divergence" : "first divergence at step " + step);
+            System.out.print(context);
+            return;
+        }
+        if(args.length < 2 || args.length > 3) {
+            System.err.println("usage: java pippin.TraceDiff traceA traceB [program.pexe]");
+            System.err.println("       java pippin.TraceDiff -run [-engines engineA engineB]"
+                    + " programA.pexe programB.pexe [maxSteps]");
+            System.exit(2);
+        }
+        TraceReader a = new TraceReader(Paths.get(args[0]));
+        TraceReader b = new TraceReader(Paths.get(args[1]));
+        Code code = null;
+        if(args.length > 2) {
+            code = new Code();
+            Loader.loadOrThrow(new MachineModel(), code, new File(args[2]));
+        }
+        long step = firstDivergence(a, b);
+        if(step < 0) {
+            System.out.println("no divergence in " + a.size() + " steps");
+            return;
+        }
+        System.out.println("first divergence at step " + step);
+        System.out.print(context(a, b, step, code));
+    }
+}
@@ -0,0 +1,162 @@
+package pippin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a trace written by TraceWriter. Every segment is mapped read only
+ * and a step is found by dividing by the segment length, so getting any
+ * record costs the same however long the trace is.
+ */
+public class TraceReader {
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final int segmentRecords;
+    private final long size;
+
+    /**
+     * Maps the segments of the trace called base
+     * @throws IOException if there is no first segment or a segment is not
+     * part of a trace
+     */
+    public TraceReader(Path base) throws IOException {
+        int perSegment = 0;
+        long count = 0;
+        for(int index = 0; Files.exists(TraceWriter.segment(base, index)); index++) {
+            Path file = TraceWriter.segment(base, index);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if(channel.size() < TraceWriter.HEADER_SIZE)
+                    throw new IOException(file + " is not a Pippin trace");
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(segment.getInt(0) != TraceWriter.MAGIC || segment.getInt(4) != TraceWriter.VERSION
+                        || segment.getInt(8) != TraceWriter.RECORD_SIZE
+                        || segment.getLong(16) != count
+                        || TraceWriter.HEADER_SIZE + segment.getLong(24) * TraceWriter.RECORD_SIZE
+                            > channel.size())
+                    throw new IOException(file + " is not a Pippin trace or does not follow the one before");
+                perSegment = segment.getInt(12);
+                count += segment.getLong(24);
+                segments.add(segment);
+            }
+        }
+        if(segments.isEmpty())
+            throw new IOException("No trace at " + base);
+        this.segmentRecords = perSegment;
+        this.size = count;
+    }
+
+    /**
+     * @return the number of steps recorded
+     */
+    public long size() {
+        return this.size;
+    }
+
+    int getSegmentRecords() {
+        return this.segmentRecords;
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return a view of the records in segment index, without its header
+     */
+    ByteBuffer records(int index) {
+        MappedByteBuffer segment = segments.get(index);
+        long count = Math.min(segmentRecords, size - (long)index * segmentRecords);
+        return segment.slice(TraceWriter.HEADER_SIZE, (int)count * TraceWriter.RECORD_SIZE);
+    }
+
+    // the offset of the record of step in its segment
+    private int offset(long step) {
+        if(step < 0 || step >= size)
+            throw new IndexOutOfBoundsException("Step " + step + " is not in a trace of " + size);
+        return TraceWriter.HEADER_SIZE + (int)(step % segmentRecords) * TraceWriter.RECORD_SIZE;
+    }
+
+    private MappedByteBuffer segment(long step) {
+        return segments.get((int)(step / segmentRecords));
+    }
+
+    public int getProgramCounter(long step) {
+        return segment(step).getShort(offset(step)) & 0xFFFF;
+    }
+
+    public int getOpcode(long step) {
+        return segment(step).get(offset(step) + 2) & ~TraceWriter.WRITE_FLAG & 0xFF;
+    }
+
+    public int getIndirectionLevel(long step) {
+        return segment(step).get(offset(step) + 3);
+    }
+
+    /**
+     * @return true if the instruction at step wrote to memory
+     */
+    public boolean isWrite(long step) {
+        return (segment(step).get(offset(step) + 2) & TraceWriter.WRITE_FLAG) != 0;
+    }
+
+    /**
+     * @return the address written, or else the address the operand resolved
+     * to, or -1 for an immediate operand
+     */
+    public int getAddress(long step) {
+        return segment(step).getInt(offset(step) + 4);
+    }
+
+    /**
+     * @return the value written, or 0 if nothing was
+     */
+    public int getValue(long step) {
+        return segment(step).getInt(offset(step) + 8);
+    }
+
+    public int getAccumulator(long step) {
+        return segment(step).getInt(offset(step) + 12);
+    }
+
+    /**
+     * @return one line describing the record of step
+     */
+    public String format(long step) {
+        String mnemonic = InstructionMap.mnemonics.get(getOpcode(step));
+        StringBuilder builder = new StringBuilder(String.format("%d pc=%d %s level=%d",
+                    step, getProgramCounter(step), mnemonic == null ? "?" : mnemonic,
+                    getIndirectionLevel(step)));
+        if(isWrite(step))
+            builder.append(String.format(" wrote %d to %d", getValue(step), getAddress(step)));
+        else if(getAddress(step) >= 0)
+            builder.append(" address=").append(getAddress(step));
+        builder.append(" acc=").append(getAccumulator(step));
+        return builder.toString();
+    }
+
+    /**
+     * Prints the records of a trace
+     * @param args the trace, then optionally the first step to print and
+     * how many steps to print (in decimal, 20 by default)
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || args.length > 3) {
+            System.err.println("usage: java pippin.TraceReader trace [firstStep [count]]");
+            System.exit(2);
+        }
+        TraceReader trace = new TraceReader(Paths.get(args[0]));
+        long first = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        long count = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        System.out.println(trace.size() + " steps");
+        for(long step = first; step < Math.min(trace.size(), first + count); step++) {
+            System.out.println(trace.format(step));
+        }
+    }
+}
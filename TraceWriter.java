@@ -0,0 +1,215 @@
+package pippin;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every instruction a machine executes, one fixed size record per
+ * step, in a series of memory mapped segment files named after the trace:
+ * trace.0, trace.1 and so on. Each segment is big-endian and holds
+ * SEGMENT_RECORDS records after a header:
+ *
+ *   0   int   magic, "PIPT"
+ *   4   int   layout version, 1
+ *   8   int   record size, 16
+ *   12  int   records per segment
+ *   16  long  step of the first record
+ *   24  long  number of records in the segment
+ *
+ * and each record is
+ *
+ *   0   short program counter
+ *   2   byte  opcode, plus 0x80 if the instruction wrote to memory
+ *   3   byte  indirection level
+ *   4   int   the address written, or else the address the operand
+ *             resolved to, or -1 for an immediate operand
+ *   8   int   the value written, or 0
+ *   12  int   accumulator after the instruction
+ *
+ * so record n of the trace is found by arithmetic alone. The running
+ * thread fills one buffer while a background thread copies the other
+ * into the mapped segments; it only waits if the copy of the last full
+ * buffer has not finished by the time the next one fills.
+ */
+public class TraceWriter implements AutoCloseable {
+    public static final int MAGIC = 0x50495054;
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 16;
+    public static final int SEGMENT_RECORDS = 1 << 22;
+    static final int HEADER_SIZE = 32;
+    static final int WRITE_FLAG = 0x80;
+    private static final int BUFFER_RECORDS = 1 << 14;
+
+    private final Path base;
+    private final int segmentRecords;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pippin trace writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ByteBuffer filling = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+    private Future<?> pending;
+    private long recorded;
+    private int waits;
+    // only used on the writer thread
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long copied;
+
+    public TraceWriter(Path base) {
+        this(base, SEGMENT_RECORDS);
+    }
+
+    TraceWriter(Path base, int segmentRecords) {
+        this.base = base;
+        this.segmentRecords = segmentRecords;
+    }
+
+    /**
+     * @return the name of segment index of the trace called base
+     */
+    static Path segment(Path base, int index) {
+        return base.resolveSibling(base.getFileName() + "." + index);
+    }
+
+    /**
+     * Appends the record of one executed instruction
+     * @param address the address written, or else the address the operand
+     * resolved to, or -1 for none
+     * @param wrote true if the instruction wrote value to address
+     * @throws UncheckedIOException if writing an earlier buffer failed
+     */
+    void record(int pc, int op, int level, int address, boolean wrote, int value, int accumulator) {
+        filling.putShort((short)pc).put((byte)(wrote ? op | WRITE_FLAG : op)).put((byte)level)
+            .putInt(address).putInt(wrote ? value : 0).putInt(accumulator);
+        recorded++;
+        if(!filling.hasRemaining())
+            flush();
+    }
+
+    /**
+     * @return the number of records appended so far
+     */
+    public long getRecorded() {
+        return this.recorded;
+    }
+
+    /**
+     * @return how often the running thread had to wait for the background
+     * copy of the previous buffer
+     */
+    public int getWaits() {
+        return this.waits;
+    }
+
+    // hands the full buffer to the writer thread and carries on in the other
+    private void flush() {
+        if(pending != null && !pending.isDone())
+            waits++;
+        try {
+            await();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer full = filling;
+        full.flip();
+        filling = spare;
+        filling.clear();
+        spare = full;
+        pending = writer.submit(() -> {
+            copy(full);
+            return null;
+        });
+    }
+
+    private void await() throws IOException {
+        if(pending == null)
+            return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + base, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                ? (IOException)e.getCause() : new IOException(e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    private void copy(ByteBuffer records) throws IOException {
+        while(records.hasRemaining()) {
+            int offset = (int)(copied % segmentRecords);
+            if(offset == 0 || segment == null)
+                open((int)(copied / segmentRecords));
+            int count = Math.min(records.remaining() / RECORD_SIZE, segmentRecords - offset);
+            ByteBuffer slice = records.slice();
+            slice.limit(count * RECORD_SIZE);
+            segment.put(HEADER_SIZE + offset * RECORD_SIZE, slice, 0, slice.limit());
+            records.position(records.position() + count * RECORD_SIZE);
+            copied += count;
+            segment.putLong(24, offset + count);
+        }
+    }
+
+    private void open(int index) throws IOException {
+        finish();
+        channel = FileChannel.open(segment(base, index), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long)segmentRecords * RECORD_SIZE);
+        segment.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(segmentRecords)
+            .putLong((long)index * segmentRecords).putLong(0);
+    }
+
+    // flushes the current segment to disk and cuts it down to its records
+    private void finish() throws IOException {
+        if(channel == null)
+            return;
+        long count = segment.getLong(24);
+        segment.force();
+        segment = null;
+        channel.truncate(HEADER_SIZE + count * RECORD_SIZE);
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * Writes out every record and closes the last segment
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            await();
+            filling.flip();
+            ByteBuffer last = filling;
+            pending = writer.submit(() -> {
+                copy(last);
+                if(segment == null)
+                    open(0);
+                finish();
+                return null;
+            });
+            await();
+        } finally {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package pippin;
+
+/**
+ * A bounded record of how to undo the most recent instructions, kept as
+ * three-int slots in one ring buffer. Each instruction starts with a STEP
+ * slot holding the program counter, accumulator and running flag it
+ * started from, followed by a WRITE slot (address, old value) for each
+ * setData and a ROTATE slot (start, length, distance in the tag) for each
+ * rotate, so ROT costs one slot however big its block. When the ring is
+ * full the oldest instructions are dropped whole.
+ */
+class UndoLog {
+    private static final int STEP = 0, WRITE = 1, ROTATE = 2;
+    private static final int KIND_MASK = 3, TAG_SHIFT = 2;
+    static final int MIN_CAPACITY = 4;
+
+    private final int[] ring;
+    private final int capacity;
+    private int head, count;
+
+    /**
+     * @param capacity the number of slots to keep; an instruction takes one
+     * slot plus one for each memory change it makes
+     */
+    UndoLog(int capacity) {
+        if(capacity < MIN_CAPACITY)
+            throw new IllegalArgumentException("The undo log needs at least " + MIN_CAPACITY + " slots");
+        this.capacity = capacity;
+        this.ring = new int[3 * capacity];
+    }
+
+    private void push(int tag, int a, int b) {
+        if(count == capacity)
+            dropOldest();
+        int i = 3 * head;
+        ring[i] = tag;
+        ring[i + 1] = a;
+        ring[i + 2] = b;
+        if(++head == capacity)
+            head = 0;
+        count++;
+    }
+
+    // drops the oldest instruction and every change recorded for it
+    private void dropOldest() {
+        do {
+            count--;
+        } while(count > 0 && (ring[3 * tail()] & KIND_MASK) != STEP);
+    }
+
+    private int tail() {
+        int tail = head - count;
+        return tail < 0 ? tail + capacity : tail;
+    }
+
+    void step(int programCounter, int accumulator, boolean running) {
+        push(STEP | (running ? 1 : 0) << TAG_SHIFT, programCounter, accumulator);
+    }
+
+    void write(int index, int oldValue) {
+        push(WRITE, index, oldValue);
+    }
+
+    void rotate(int start, int length, int distance) {
+        push(ROTATE | distance << TAG_SHIFT, start, length);
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the number of instructions that can still be undone
+     */
+    int size() {
+        int steps = 0;
+        for(int i = 0, slot = tail(); i < count; i++) {
+            if((ring[3 * slot] & KIND_MASK) == STEP)
+                steps++;
+            if(++slot == capacity)
+                slot = 0;
+        }
+        return steps;
+    }
+
+    void clear() {
+        head = count = 0;
+    }
+
+    /**
+     * Undoes the memory changes of the newest instruction, newest first,
+     * and removes it from the log. The memory must not record into this
+     * log while it is being undone.
+     * @param registers receives the program counter, accumulator and
+     * running flag (1 or 0) the instruction started from
+     * @return false if there was nothing to undo
+     */
+    boolean undo(Memory memory, int[] registers) {
+        while(count > 0) {
+            if(--head < 0)
+                head = capacity - 1;
+            count--;
+            int i = 3 * head;
+            int tag = ring[i];
+            switch(tag & KIND_MASK) {
+                case WRITE:
+                    memory.setData(ring[i + 1], ring[i + 2]);
+                    break;
+                case ROTATE:
+                    int length = ring[i + 2];
+                    int distance = tag >>> TAG_SHIFT;
+                    memory.rotate(ring[i + 1], length, distance == 0 ? 0 : length - distance);
+                    break;
+                default:
+                    registers[0] = ring[i + 1];
+                    registers[1] = ring[i + 2];
+                    registers[2] = tag >>> TAG_SHIFT;
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+package pippin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of Assembler.assemble on a generated source of the given number of
+ * code lines, cycling through every addressing form the assembler takes,
+ * followed by a DATA section a quarter as long. The source is the same on
+ * every run, so results can be compared between commits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AssemblerBenchmark {
+    private static final String[] LINES = {"LOD 1F", "STO [20", "ADD [[21", "SUB 3", "MUL [22",
+        "DIV [[23", "AND 1", "NOT", "CMPZ [24", "CMPL [25", "JUMP 0", "JMPZ [26", "NOP", "ROT [27"};
+
+    @Param({"1000", "100000"})
+    public int lines;
+
+    private File source;
+    private File output;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = File.createTempFile("pippin", ".pasm");
+        output = File.createTempFile("pippin", ".pexe");
+        try (PrintWriter out = new PrintWriter(source)) {
+            for(int i = 0; i < lines; i++) {
+                out.println(LINES[i % LINES.length]);
+            }
+            out.println("HALT");
+            out.println("DATA");
+            for(int i = 0; i < lines / 4; i++) {
+                out.println(Integer.toHexString(i).toUpperCase() + " " + Integer.toHexString(i * 7).toUpperCase());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    public boolean assemble() {
+        Map<Integer, String> errors = new TreeMap<>();
+        if(!Assembler.assemble(source, output, errors))
+            throw new IllegalStateException("The generated source does not assemble: " + errors);
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of Loader.loadOrThrow reading a .pexe file into a fresh
+ * Code and the same MachineModel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoaderBenchmark {
+    @Param({"factorial8", "qsort", "merge"})
+    public String program;
+
+    private File file;
+    private MachineModel model;
+    private Code code;
+
+    @Setup
+    public void setUp() {
+        file = new File("assembly/" + program + ".pexe");
+        model = new MachineModel();
+        code = new Code();
+    }
+
+    @Benchmark
+    public int load() throws FileNotFoundException {
+        code.clear();
+        Loader.loadOrThrow(model, code, file);
+        return code.size();
+    }
+}
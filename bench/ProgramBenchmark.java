@@ -0,0 +1,58 @@
+package pippin;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of a whole run of the corpus programs with MachineModel.run, with
+ * each engine. Every run starts from the data memory the program was
+ * loaded with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProgramBenchmark {
+    @Param({"factorial8", "factorialindirect7", "qsort", "merge"})
+    public String program;
+
+    @Param({"INTERPRETER", "THREADED", "TIERED"})
+    public MachineModel.Engine engine;
+
+    private MachineModel model;
+    private int[] initialData;
+
+    @Setup
+    public void setUp() throws FileNotFoundException {
+        model = new MachineModel();
+        Code code = new Code();
+        Loader.loadOrThrow(model, code, new File("assembly/" + program + ".pexe"));
+        model.setCode(code);
+        model.setEngine(engine);
+        initialData = model.getData().clone();
+    }
+
+    @Benchmark
+    public long run() {
+        for(int i = 0; i < initialData.length; i++) {
+            model.setData(i, initialData[i]);
+        }
+        model.setAccumulator(0);
+        model.setProgramCounter(0);
+        return model.run(Long.MAX_VALUE).getSteps();
+    }
+}
@@ -0,0 +1,63 @@
+package pippin;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of MachineModel.step on a single instruction, for every
+ * opcode and indirection level that has a handler of its own. The
+ * instruction is written the way the assembler reads it, so "ADD [[4"
+ * is ADD at level 2. Its operand 4 holds 5 and 5 holds 3, so every level
+ * reads a nonzero divisor and jumps stay inside memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StepBenchmark {
+    @Param({"NOP", "LOD 4", "LOD [4", "LOD [[4", "STO [4", "STO [[4",
+        "ADD 4", "ADD [4", "ADD [[4", "SUB 4", "SUB [4", "SUB [[4",
+        "MUL 4", "MUL [4", "MUL [[4", "DIV 4", "DIV [4", "DIV [[4",
+        "AND 4", "AND [4", "NOT", "CMPZ [4", "CMPL [4",
+        "JUMP 4", "JUMP [4", "JMPZ 4", "JMPZ [4"})
+    public String instruction;
+
+    private MachineModel model;
+
+    @Setup
+    public void setUp() {
+        String[] parts = instruction.split(" ");
+        int level = 0, arg = 0;
+        if(parts.length > 1) {
+            while(parts[1].charAt(level) == '[') level++;
+            arg = Integer.parseInt(parts[1].substring(level), 16);
+        }
+        Code code = new Code();
+        code.setCode(InstructionMap.opcode.get(parts[0]), arg, level);
+        model = new MachineModel();
+        model.setCode(code);
+        model.setData(4, 5);
+        model.setData(5, 3);
+        model.setAccumulator(1);
+        model.setRunning(true);
+    }
+
+    @Benchmark
+    public int step() {
+        model.setProgramCounter(0);
+        model.step();
+        return model.getAccumulator();
+    }
+}